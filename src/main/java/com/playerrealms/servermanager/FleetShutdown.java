@@ -0,0 +1,152 @@
+package com.playerrealms.servermanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.playerrealms.mctool.ServerNotOnlineException;
+import com.playerrealms.servermanager.snapshot.UploadPipeline;
+import com.playerrealms.servermanager.tool.Threads;
+
+/**
+ * Stops every running server when the manager shuts down, a few at a time so the saves and uploads
+ * do not all hit the disk and MongoDB at once. Worlds that were saved most recently go first because
+ * they have the most to upload. Everything has to be done before the drain deadline, servers that
+ * will not stop by then are killed and uploads still going are left for the next boot to finish.
+ * The upload pipeline is shut down at the end, uploads handed in after that fail straight away.
+ */
+public class FleetShutdown {
+
+	private final ServerManager manager;
+	
+	private final Logger logger;
+	
+	private final int stopThreads, uploadThreads;
+	
+	private final long stopTimeout, deadline;
+	
+	private final AtomicInteger stopped = new AtomicInteger(), killed = new AtomicInteger();
+	
+	/**
+	 * @param stopThreads how many servers are stopped at once
+	 * @param uploadThreads how many uploads run at once while shutting down
+	 * @param stopTimeout how long a server gets to stop before it is killed, in ms
+	 * @param deadline how long the whole shutdown may take, in ms
+	 */
+	public FleetShutdown(ServerManager manager, int stopThreads, int uploadThreads, long stopTimeout, long deadline) {
+		this.manager = manager;
+		this.logger = manager.getLogger();
+		this.stopThreads = Math.max(1, stopThreads);
+		this.uploadThreads = uploadThreads;
+		this.stopTimeout = stopTimeout;
+		this.deadline = deadline;
+	}
+	
+	/**
+	 * Stop every server and wait for the uploads
+	 * @return true if every server was stopped and uploaded before the deadline
+	 */
+	public boolean run() throws InterruptedException {
+		long end = System.currentTimeMillis() + deadline;
+		
+		List<Server> running = new ArrayList<>();
+		for(Server server : manager.getServers()) {
+			if(server.isRunning()) {
+				running.add(server);
+			}
+		}
+		
+		Collections.sort(running, Comparator.comparingLong(FleetShutdown::getLastSave).reversed());
+		
+		UploadPipeline uploads = manager.getUploadPipeline();
+		uploads.setThreads(uploadThreads);
+		
+		logger.info("Shutting down "+running.size()+" servers, "+stopThreads+" at a time with "+uploadThreads+" uploads");
+		
+		ExecutorService stops = Executors.newFixedThreadPool(stopThreads, Threads.factory("Shutdown", false));
+		
+		for(Server server : running) {
+			stops.execute(() -> stop(server, end));
+		}
+		
+		stops.shutdown();
+		
+		while(!stops.awaitTermination(5, TimeUnit.SECONDS)) {
+			report(running.size(), end);
+		}
+		
+		while(uploads.getPendingCount() > 0 && System.currentTimeMillis() < end) {
+			report(running.size(), end);
+			Thread.sleep(1000);
+		}
+		
+		report(running.size(), end);
+		
+		int pending = uploads.getPendingCount();
+		
+		//The upload threads are not daemons, they have to stop or the JVM never exits
+		uploads.shutdown(Math.max(0, end - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		
+		if(pending > 0) {
+			logger.severe(pending+" uploads did not finish before the deadline, they are uploaded on the next boot");
+			return false;
+		}
+		
+		return killed.get() == 0;
+	}
+	
+	private void stop(Server server, long end) {
+		long now = System.currentTimeMillis();
+		
+		try {
+			if(now < end) {
+				logger.info("Shutting down "+server.getName());
+				server.stop(false);
+				
+				long stopBy = Math.min(end, now + stopTimeout);
+				
+				while(server.isRunning() && System.currentTimeMillis() < stopBy) {
+					Thread.sleep(250);
+				}
+			}
+			
+			if(server.isRunning()) {
+				logger.warning("Killing "+server.getName()+", it did not stop in time");
+				killed.incrementAndGet();
+				server.stop(true);
+			}
+		} catch (ServerNotOnlineException e) {
+			//Stopped on its own
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		stopped.incrementAndGet();
+	}
+	
+	private void report(int total, long end) {
+		UploadPipeline uploads = manager.getUploadPipeline();
+		logger.info("Shutdown: "+stopped.get()+"/"+total+" stopped ("+killed.get()+" killed), uploads "+uploads.getActiveCount()+" running, "
+				+uploads.getQueueDepth()+" queued, "+uploads.getCompletedCount()+" done, "+uploads.getFailedCount()+" failed, "
+				+Math.max(0, TimeUnit.MILLISECONDS.toSeconds(end - System.currentTimeMillis()))+"s left");
+	}
+	
+	/**
+	 * @return when the world of a server was last saved
+	 */
+	private static long getLastSave(Server server) {
+		File level = new File(server.getFolder(), "world/level.dat");
+		return level.exists() ? level.lastModified() : 0;
+	}
+	
+}
@@ -0,0 +1,57 @@
+package com.playerrealms.servermanager;
+
+import com.playerrealms.common.ServerStatus;
+
+/**
+ * Where a server we run is in its lifecycle. Only this manager changes it, the STATUS
+ * in MongoDB is written from it for everyone else to read.
+ */
+public enum LifecycleState {
+
+	OFFLINE(ServerStatus.OFFLINE),
+	DOWNLOADING(ServerStatus.STARTING),
+	STARTING(ServerStatus.STARTING),
+	ONLINE(ServerStatus.ONLINE),
+	STOPPING(ServerStatus.STOPPING),
+	UPLOADING(ServerStatus.STOPPING);
+
+	private final ServerStatus status;
+
+	private LifecycleState(ServerStatus status) {
+		this.status = status;
+	}
+
+	/**
+	 * @return the status written to MongoDB for this state
+	 */
+	public ServerStatus getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return true if a server in this state may move to the given one
+	 */
+	public boolean canMoveTo(LifecycleState to) {
+		switch(this) {
+		case OFFLINE:
+			return to == DOWNLOADING;
+		case DOWNLOADING:
+			//OFFLINE if the start failed, see Server.abortStart
+			return to == STARTING || to == OFFLINE;
+		case STARTING:
+			//STARTING again when the process is restarted, OFFLINE if the start failed before there was a process to stop
+			return to == STARTING || to == ONLINE || to == STOPPING || to == OFFLINE;
+		case ONLINE:
+			return to == STARTING || to == STOPPING;
+		case STOPPING:
+			//STARTING for autorestarts, ONLINE if the stop failed
+			return to == UPLOADING || to == STARTING || to == ONLINE;
+		case UPLOADING:
+			//Back to STOPPING if the upload failed so nobody starts the old snapshot
+			return to == OFFLINE || to == STOPPING;
+		default:
+			return false;
+		}
+	}
+
+}
@@ -4,26 +4,50 @@ import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.gridfs.GridFSBucket;
 import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.GridFSDownloadStream;
 import com.mongodb.client.gridfs.GridFSFindIterable;
+import com.mongodb.client.gridfs.GridFSUploadStream;
 import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
 import com.mongodb.client.model.Filters;
-import com.playerrealms.common.RedisConstants;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
 import com.playerrealms.common.ServerStatus;
 import com.playerrealms.common.WorldGeneratorType;
 import com.playerrealms.mctool.*;
-import com.playerrealms.servermanager.redis.JedisAPI;
+import com.playerrealms.servermanager.codec.AdaptiveLevel;
+import com.playerrealms.servermanager.codec.ArchiveCodec;
+import com.playerrealms.servermanager.codec.ArchiveCodecs;
+import com.playerrealms.servermanager.snapshot.SnapshotFilter;
+import com.playerrealms.servermanager.snapshot.SnapshotStore;
+import com.playerrealms.servermanager.snapshot.UploadProgress;
+import com.playerrealms.servermanager.tool.ArchiveUtils;
+import com.playerrealms.servermanager.tool.HashedWheelTimer;
+import com.playerrealms.servermanager.tool.PathFilter;
+import com.playerrealms.servermanager.tool.ReadAheadInputStream;
+import com.playerrealms.servermanager.tool.TemplateSync;
 import com.playerrealms.servermanager.tool.WorldDownload;
 import com.playerrealms.servermanager.yaml.Configuration;
 import com.playerrealms.servermanager.yaml.ConfigurationProvider;
 import com.playerrealms.servermanager.yaml.YamlConfiguration;
 import org.apache.commons.io.FileUtils;
 import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.zeroturnaround.zip.ZipUtil;
 
 import java.io.*;
-import java.net.ServerSocket;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 public class Server extends ServerListener {
@@ -34,6 +58,33 @@ public class Server extends ServerListener {
 	
 	public static final int PREMIUM_MAX_PLAYERS = 25;
 	
+	/**
+	 * How many GridFS chunks to fetch per round trip while extracting
+	 */
+	private static final int DOWNLOAD_BATCH_SIZE = 16;
+	
+	/**
+	 * Files a checkpoint leaves out because they are put back by copyRequiredFiles on start
+	 */
+	private static final Set<String> CHECKPOINT_EXCLUDES = new HashSet<>(Arrays.asList("spigot.jar", "core", "plugins/PlayerRealms/plugins"));
+	
+	/**
+	 * How long a starting server may go without log output before it is killed
+	 */
+	private static final long STARTUP_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+	
+	/**
+	 * Autorestarts wait this long doubled for every restart in a row, up to {@link #AUTORESTART_MAX_DELAY}
+	 */
+	private static final long AUTORESTART_DELAY = TimeUnit.SECONDS.toMillis(5);
+	
+	private static final long AUTORESTART_MAX_DELAY = TimeUnit.MINUTES.toMillis(5);
+	
+	/**
+	 * A server that ran this long before stopping has its autorestart delay reset
+	 */
+	private static final long AUTORESTART_STABLE_TIME = TimeUnit.MINUTES.toMillis(10);
+	
 	private String name;
 	
 	private final ServerManager manager;
@@ -46,56 +97,137 @@ public class Server extends ServerListener {
 	
 	private boolean restarting;
 	
-	private Thread checkingStartupThread;
+	private volatile HashedWheelTimer.Timeout startupTimeout;
+	
+	private long lastStart;
+	
+	private int restartsInARow;
+	
+	private final Object metadataLock = new Object();
+	
+	private ObjectId id;
+	
+	/**
+	 * Local copy of our metadata document, null when it has to be re-read from MongoDB
+	 */
+	private Document metadata;
+	
+	/**
+	 * Metadata changes waiting to be written by {@link #flushMetadata()}
+	 */
+	private final Map<String, String> pendingMetadata = new HashMap<>();
+	
+	private boolean flushScheduled;
+	
+	/**
+	 * Held while queued metadata is written so an older flush never lands after a newer one
+	 */
+	private final Object flushLock = new Object();
+	
+	/**
+	 * Where the server is in its lifecycle on this manager, see {@link #transition(LifecycleState)}
+	 */
+	private final AtomicReference<LifecycleState> state = new AtomicReference<>(LifecycleState.OFFLINE);
+	
+	/**
+	 * Held while a snapshot of this server is being uploaded, so a checkpoint and the stop upload never overlap
+	 */
+	private final ReentrantLock snapshotLock = new ReentrantLock();
 	
 	public Server(String name, ServerManager manager,Logger logger) {
+		this(name, null, manager, logger);
+	}
+	
+	/**
+	 * @param doc the servers document if the caller already has it, or null to read it from MongoDB
+	 */
+	public Server(String name, Document doc, ServerManager manager, Logger logger) {
 		this.manager = manager;
 		this.name = name;
 		restarting = false;
-		Document doc = findOurDoc();
+		if(doc == null) {
+			doc = findOurDoc();
+		}
 		this.name = doc.getString("server_name");
 		this.logger = logger;
-		checkingStartupThread = null;
+		updateMetadataCache(doc);
 	}
 	
 	public void checkForStartup(){
-		if(checkingStartupThread != null){
-			if(checkingStartupThread.isAlive())
-				checkingStartupThread.interrupt();
+		HashedWheelTimer.Timeout timeout = startupTimeout;
+		if(timeout != null){
+			timeout.cancel();
+		}
+		logger.info("Waiting for startup ("+name+")");
+		scheduleStartupCheck(STARTUP_TIMEOUT);
+	}
+	
+	private void scheduleStartupCheck(long delay) {
+		startupTimeout = manager.getTimer().schedule(this::checkStartup, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Runs on the timer when the startup deadline passes. Log output since the deadline was set pushes it forward.
+	 */
+	private void checkStartup() {
+		if(state.get() != LifecycleState.STARTING) {
+			logger.info("Finished waiting for startup "+state.get()+" ("+name+")");
+			return;
+		}
+		
+		MinecraftServer mc = this.mc;
+		
+		long lastLogUpdate = mc != null ? mc.getLastLogUpdate() : 0L;
+		
+		long time = System.currentTimeMillis() - lastLogUpdate;
+		
+		if(time < STARTUP_TIMEOUT) {
+			scheduleStartupCheck(STARTUP_TIMEOUT - time);
+			return;
 		}
-		checkingStartupThread = new Thread(new Runnable() {
+		
+		boolean queued = manager.getActions().submit(name, () -> {
+			//The ONLINE announcement may have been lost, ask MongoDB before killing a healthy server
+			try {
+				Document doc = manager.getServerData(name);
+				if(doc != null) {
+					updateMetadataCache(doc);
+				}
+			}catch(Exception e) {
+				e.printStackTrace();
+			}
 			
-			@Override
-			public void run() {
-
-				logger.info("Waiting for startup ("+name+")");
-				while(getOnlineStatus() == ServerStatus.STARTING){
-					long lastLogUpdate = mc != null ? mc.getLastLogUpdate() : 0L;
-					
-					long time = System.currentTimeMillis() - lastLogUpdate;
-					
-					if(time > TimeUnit.MINUTES.toMillis(5)){
-						try {
-							logger.info("Did not startup after 5 minutes, forcing it closed ("+name+")");
-							mc.stop(true);
-							logger.info("Successfully closed ("+name+")");
-						} catch (ServerNotOnlineException e) {
-							e.printStackTrace();
-						} catch (IOException e) {
-							e.printStackTrace();
-						}
-					}else{
-						try {
-							Thread.sleep(10000);
-						} catch (InterruptedException e) {
-						}
-					}
+			if(state.get() != LifecycleState.STARTING) {
+				logger.info("Finished waiting for startup "+state.get()+" ("+name+")");
+				return;
+			}
+			
+			if(mc == null || !mc.isRunning()) {
+				//Nothing to kill, a process that died moves the state itself in onServerStop
+				logger.warning("Marked as starting without a running process, no longer waiting for startup ("+name+")");
+				if(mc == null) {
+					abortStart();
 				}
-				logger.info("Finished waiting for startup "+getOnlineStatus()+" ("+name+")");
+				return;
+			}
+			
+			try {
+				logger.info("Did not startup after 5 minutes, forcing it closed ("+name+")");
+				mc.stop(true);
+				logger.info("Successfully closed ("+name+")");
+			} catch (ServerNotOnlineException e) {
+				e.printStackTrace();
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
+			//Check again in case the server is still marked as starting
+			scheduleStartupCheck(TimeUnit.SECONDS.toMillis(10));
 		});
-		checkingStartupThread.start();
 		
+		if(!queued) {
+			//Too many actions waiting for this server, keep the deadline alive and try again
+			scheduleStartupCheck(TimeUnit.SECONDS.toMillis(10));
+		}
 	}
 	
 	public void setMc(MinecraftServer mc) {
@@ -179,30 +311,192 @@ public class Server extends ServerListener {
 		return serverData;
 	}
 	
+	/**
+	 * Replace the cached metadata with the one in the given servers document
+	 * @param doc a full document from the servers collection
+	 */
+	public void updateMetadataCache(Document doc) {
+		Document meta = (Document) doc.get("metadata");
+		synchronized (metadataLock) {
+			id = doc.getObjectId("_id");
+			metadata = meta == null ? new Document() : meta;
+		}
+		//The server plugin marks itself ONLINE once it has loaded, every other status is ours to write
+		if(meta != null && ServerStatus.ONLINE.name().equals(meta.getString("STATUS"))) {
+			state.compareAndSet(LifecycleState.STARTING, LifecycleState.ONLINE);
+		}
+	}
+	
+	/**
+	 * Drop the cached metadata so the next read goes to MongoDB
+	 */
+	public void invalidateMetadata() {
+		synchronized (metadataLock) {
+			metadata = null;
+		}
+	}
+	
+	/**
+	 * Called when an UPDATE for this server comes in on the update channel from anyone but us,
+	 * our own announcements are marked with our manager id and skipped since the cache already has those changes.
+	 */
+	public void onUpdateAnnounced() {
+		invalidateMetadata();
+		if(state.get() == LifecycleState.STARTING) {
+			//Could be the plugin saying it is ONLINE, read it now rather than on the next decision
+			manager.getScheduler().execute(() -> {
+				try {
+					getCachedMetadata();
+				}catch(Exception e) {
+					e.printStackTrace();
+				}
+			});
+		}
+	}
+	
+	private Document getCachedMetadata() {
+		synchronized (metadataLock) {
+			if(metadata == null) {
+				updateMetadataCache(findOurDoc());
+			}
+			return metadata;
+		}
+	}
+	
+	private ObjectId getId() {
+		synchronized (metadataLock) {
+			if(id == null) {
+				updateMetadataCache(findOurDoc());
+			}
+			return id;
+		}
+	}
+	
 	public boolean hasMetadata(String key) {
-		Document serverData = findOurDoc();
+		synchronized (metadataLock) {
+			String pending = pendingMetadata.get(key);
+			if(pending != null) {
+				return !pending.isEmpty();
+			}
+		}
+		return getCachedMetadata().containsKey(key);
+	}
+	
+	public void setMetadata(String key, String value) {
+		Map<String, String> changes = new HashMap<>();
+		changes.put(key, value);
+		setMetadata(changes);
+	}
+	
+	/**
+	 * Apply several metadata changes in one update and announce them once.
+	 * An empty value removes the key.
+	 * @param changes keys mapped to their new values
+	 */
+	public void setMetadata(Map<String, String> changes) {
+		Document set = new Document();
+		Document unset = new Document();
+		
+		for(Entry<String, String> entry : changes.entrySet()) {
+			String key = entry.getKey();
+			String value = entry.getValue();
+			
+			if(key == null || value == null) {
+				throw new IllegalArgumentException("key or value cannot be null ("+key+") ("+value+")");
+			}
+			
+			if(value.isEmpty()) {
+				unset.append("metadata."+key, "");
+			}else {
+				set.append("metadata."+key, value);
+			}
+		}
+		
+		Document update = new Document();
+		
+		if(!set.isEmpty()) {
+			update.append("$set", set);
+		}
+		if(!unset.isEmpty()) {
+			update.append("$unset", unset);
+		}
+		
+		if(update.isEmpty()) {
+			return;
+		}
 		
-		Document obj = (Document) serverData.get("metadata");
+		MongoCollection<Document> col = manager.getMongoDatabase().getCollection("servers");
+		
+		Document updated = col.findOneAndUpdate(Filters.eq(getId()), update, new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+		
+		if(updated == null) {
+			invalidateMetadata();
+			throw new IllegalStateException("We aren't in the MongoDB!! ("+name+") ");
+		}
+		
+		updateMetadataCache(updated);
 		
-		return obj.containsKey(key);
+		announceChanges();
 	}
 	
-	public void setMetadata(String key, String value) {
+	/**
+	 * Write-behind version of {@link #setMetadata(String, String)}. The change is visible
+	 * to reads right away and written together with any other changes queued within
+	 * the managers metadata flush delay. Other managers only hear of it once it is written,
+	 * call {@link #flushMetadata()} when someone is waiting for it.
+	 */
+	public void queueMetadata(String key, String value) {
 		if(key == null || value == null) {
 			throw new IllegalArgumentException("key or value cannot be null ("+key+") ("+value+")");
 		}
 		
-		Document found = findOurDoc();
+		long delay = manager.getMetadataFlushDelay();
 		
-		MongoCollection<Document> col = manager.getMongoDatabase().getCollection("servers");
+		if(delay <= 0) {
+			setMetadata(key, value);
+			return;
+		}
 		
-		if(value.isEmpty()) {
-			col.findOneAndUpdate(Filters.eq(found.getObjectId("_id")), new Document("$unset", new Document("metadata."+key, "")));
-		}else {
-			col.findOneAndUpdate(Filters.eq(found.getObjectId("_id")), new Document("$set", new Document("metadata."+key, value)));	
+		synchronized (metadataLock) {
+			pendingMetadata.put(key, value);
+			if(flushScheduled) {
+				return;
+			}
+			flushScheduled = true;
 		}
 		
-		announceChanges();
+		manager.getScheduler().schedule(() -> {
+			try {
+				flushMetadata();
+			}catch(Exception e) {
+				e.printStackTrace();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Write all queued metadata changes now
+	 */
+	public void flushMetadata() {
+		synchronized (flushLock) {
+			Map<String, String> changes;
+			
+			synchronized (metadataLock) {
+				flushScheduled = false;
+				if(pendingMetadata.isEmpty()) {
+					return;
+				}
+				changes = new HashMap<>(pendingMetadata);
+			}
+			
+			setMetadata(changes);
+			
+			synchronized (metadataLock) {
+				for(Entry<String, String> entry : changes.entrySet()) {
+					pendingMetadata.remove(entry.getKey(), entry.getValue());
+				}
+			}
+		}
 	}
 	
 	public String getMetadata(String key) {
@@ -211,9 +505,14 @@ public class Server extends ServerListener {
 	
 	public String getMetadata(String key, String def) {
 		
-		Document serverData = findOurDoc();
+		synchronized (metadataLock) {
+			String pending = pendingMetadata.get(key);
+			if(pending != null) {
+				return pending.isEmpty() ? def : pending;
+			}
+		}
 		
-		Document obj = (Document) serverData.get("metadata");
+		Document obj = getCachedMetadata();
 		
 		if(!obj.containsKey(key)) {
 			return def;
@@ -224,18 +523,20 @@ public class Server extends ServerListener {
 	}
 	
 	public void announceChanges() {
-		JedisAPI.publish(RedisConstants.MANAGER_UPDATE_CHANNEL, name+" "+RedisConstants.UPDATE);
+		manager.announceUpdate(name);
 	}
 	
 	private void copyRequiredFiles() throws IOException {
 		File folder = getFolder();
 		File commons = new File("commons");
 		
-		FileUtils.copyDirectory(commons, folder);
+		TemplateSync sync = manager.getTemplateSync();
+		
+		sync.sync(commons, folder);
 		if(hasMetadata("type")) {
 			File type = new File("servertypes/"+getMetadata("type"));
 			if(type.exists()) {
-				FileUtils.copyDirectory(type, folder);
+				sync.sync(type, folder);
 			}else {
 				logger.warning("Missing type folder for "+getMetadata("type"));
 			}
@@ -246,7 +547,7 @@ public class Server extends ServerListener {
 		if(mc == null) {
 			if(!downloadServerData()) {
 				
-				findOurDoc();//Make sure we are in the db
+				getCachedMetadata();//Make sure we are in the db
 				
 				logger.info("First time setup ("+name+")");
 
@@ -273,7 +574,7 @@ public class Server extends ServerListener {
 			}else {
 				copyRequiredFiles();
 			}
-			port = findFreePort();
+			port = manager.getPorts().lease(name);
 			
 			String generator = "";
 			
@@ -329,7 +630,16 @@ public class Server extends ServerListener {
 			
 			//mc = new DirectMinecraftServer(new File(getFolder(), "spigot.jar"), new ServerSettings(port, getMemoryUsage(), true, areFlightEnabled(), areCommandBlocksEnabled(), generator, "-Dserver.name="+name, max, 1F).putEnvVar("servername", name));
 			
-			mc = new DockerServer(getFolder(), new ServerSettings(port, getMemoryUsage(), true, areFlightEnabled(), areCommandBlocksEnabled(), generator, "-Dserver.name="+name, max, 1F).putEnvVar("servername", name).putEnvVar("MAX_MEMORY",String.valueOf(getMemoryUsage())));
+			ServerSettings settings = new ServerSettings(port, getMemoryUsage(), true, areFlightEnabled(), areCommandBlocksEnabled(), generator, "-Dserver.name="+name, max, 1F).putEnvVar("servername", name).putEnvVar("MAX_MEMORY",String.valueOf(getMemoryUsage()));
+			
+			String cpus = manager.allocateCpus(this);
+			
+			if(cpus != null) {
+				//Only the slice the container starts with, rebalancing later changes its cpuset.cpus and not this
+				settings.putEnvVar("CPUSET", cpus);
+			}
+			
+			mc = new DockerServer(getFolder(), settings);
 			
 			mc.setListener(this);
 		}
@@ -338,7 +648,36 @@ public class Server extends ServerListener {
 			throw new ServerAlreadyOnlineException();
 		}
 		
-		mc.start();
+		try {
+			mc.start();
+		}catch(IOException e) {
+			//The port may be what failed, make the next start lease a different one
+			mc = null;
+			manager.getPorts().releaseFailed(name);
+			throw e;
+		}
+		return true;
+	}
+	
+	/**
+	 * Go back to OFFLINE after a start failed before there was a process to stop, giving back
+	 * the memory, cores and port the start reserved
+	 * @return false if the server was not DOWNLOADING or STARTING
+	 */
+	public boolean abortStart() {
+		LifecycleState from = state.get();
+		
+		if(from != LifecycleState.DOWNLOADING && from != LifecycleState.STARTING || !transition(from, LifecycleState.OFFLINE)) {
+			return false;
+		}
+		
+		manager.getMemoryLedger().release(name);
+		manager.releaseCpus(name);
+		if(!isRunning()) {
+			//Does nothing if start already gave the port back after a failed launch
+			manager.getPorts().release(name);
+		}
+		
 		return true;
 	}
 	
@@ -348,11 +687,12 @@ public class Server extends ServerListener {
 		}
 		
 		if(mc.isRunning()) {
-			setMetadata("STATUS", ServerStatus.STOPPING.name());
+			LifecycleState previous = state.get();
+			transition(LifecycleState.STOPPING);
 			try {
 				mc.stop(kill);
 			}catch(Exception e) {
-				setMetadata("STATUS", ServerStatus.ONLINE.name());
+				transition(LifecycleState.STOPPING, previous);
 				throw e;
 			}
 		}
@@ -383,80 +723,100 @@ public class Server extends ServerListener {
 	 * @throws IOException
 	 */
 	public boolean downloadServerData() throws IOException {
-
-		GridFSBucket bucket = GridFSBuckets.create(manager.getMongoDatabase(), "server_files");
-		
-		GridFSFindIterable found = bucket.find(Filters.eq("filename", name+".zip"));
 		
-		GridFSFile fs_file = found.first();
+		File folder = getFolder();
 		
-		if(fs_file == null) {
-			return false;
-		}
+		SnapshotStore store = manager.getSnapshotStore();
 		
-		logger.info("Downloading "+fs_file.getFilename()+" "+fs_file.getUploadDate()+" "+fs_file.getMD5());
+		String snapshot = store.getSnapshotId(name);
+		String cached = null;
 		
-		File folder = getFolder();
-		if(!folder.exists()) {
-			folder.mkdirs();
+		if(snapshot != null && !folder.exists()) {
+			cached = manager.getStagingArea().promote(name, folder, manager.getPrefetchWait());
+			
+			if(cached == null) {
+				cached = manager.getFolderCache().take(name, folder);
+			}
 		}
 		
-		File file = new File(getFolder(), fs_file.getFilename());
-		if(!file.exists()) {
-			file.createNewFile();
-		}
-		try(FileOutputStream fos = new FileOutputStream(file)){
-			bucket.downloadToStream(fs_file.getObjectId(), fos);
+		//A recreated server starts its versions over, only the id tells its snapshots apart
+		if(cached != null && cached.equals(snapshot)) {
+			logger.info("Using staged folder for snapshot "+snapshot+" ("+name+")");
+		}else if(!store.download(name, folder, cached != null)) {
+			if(!downloadServerArchive(folder)) {
+				return false;
+			}
 		}
 		
-		ZipUtil.unpack(file, folder);
-		
-		file.delete();
-		
 		File plugins = new File(folder, "plugins");
 		
 		if(plugins.exists()) {
 			
-			for(File temp : plugins.listFiles(f -> f.getName().endsWith(".jar") && f.isFile())) {
-				
-				temp.renameTo(new File(plugins, temp.getName()+".temp"));
-				
-			}
-			
-		}
-
-		for(File temp : plugins.listFiles(f -> f.getName().endsWith(".jar.temp") && f.isFile())) {
-			
-			String name = temp.getName().substring(0, temp.getName().indexOf(".temp"));
-			
 			File root = new File("commons/plugins/PlayerRealms/plugins");
 			
-			File replace = new File(root, name);
-			
-			if(replace.exists()) {
-				FileUtils.copyFile(replace, new File(plugins, name));
+			//Plugin jars are not kept in the upload, put back the ones that are still in commons
+			for(File marker : plugins.listFiles(f -> f.isFile() && (f.getName().endsWith(".jar") || f.getName().endsWith(".jar.temp")))) {
+				
+				String jar = marker.getName().endsWith(".temp") ? marker.getName().substring(0, marker.getName().indexOf(".temp")) : marker.getName();
+				
+				File replace = new File(root, jar);
+				File target = new File(plugins, jar);
+				
+				if(replace.exists()) {
+					manager.getTemplateSync().syncFile(replace, target, "plugins/"+jar);
+				}else {
+					target.delete();
+				}
+				
+				if(!marker.equals(target)) {
+					marker.delete();
+				}
+				
 			}
-			temp.delete();
 			
 		}
 		
 		return true;
 	}
 
-	public static int findFreePort(){
+	/**
+	 * Download and extract the servers zip from the server_files bucket
+	 * @return true if downloaded, false if there is no zip
+	 * @throws IOException
+	 */
+	private boolean downloadServerArchive(File folder) throws IOException {
 		
-		try(ServerSocket socket = new ServerSocket(0)){
-			socket.setReuseAddress(true);
-			int port = socket.getLocalPort();
-			
-			return port;
-		}catch(IOException e){
-			//Swallow
+		GridFSBucket bucket = GridFSBuckets.create(manager.getMongoDatabase(), "server_files");
+		
+		GridFSFindIterable found = bucket.find(Filters.eq("filename", name+".zip")).sort(Sorts.descending("uploadDate"));
+		
+		GridFSFile fs_file = found.first();
+		
+		if(fs_file == null) {
+			return false;
+		}
+		
+		logger.info("Downloading "+fs_file.getFilename()+" "+fs_file.getUploadDate()+" "+fs_file.getMD5());
+		
+		if(!folder.exists()) {
+			folder.mkdirs();
+		}
+		
+		GridFSDownloadStream download = bucket.openDownloadStream(fs_file.getObjectId()).batchSize(DOWNLOAD_BATCH_SIZE);
+		
+		ArchiveCodec codec = ArchiveCodecs.fromMetadata(fs_file.getMetadata());
+		
+		try(InputStream in = new ReadAheadInputStream(download, fs_file.getChunkSize(), DOWNLOAD_BATCH_SIZE * 2, name+"-Download")){
+			if(codec == ArchiveCodecs.DEFLATE) {
+				ArchiveUtils.unpack(in, folder);
+			}else {
+				ArchiveUtils.unpack(codec.decompress(in), folder);
+			}
 		}
 		
-		throw new IllegalStateException("Could not find a free port!");
+		return true;
 	}
-	
+
 	@Override
 	public void onServerRestartBegin(MinecraftServer server) {
 		restarting = true;
@@ -467,17 +827,67 @@ public class Server extends ServerListener {
 		restarting = false;
 	}
 	
+	/**
+	 * @return how long to wait before autorestarting, backing off while the server keeps stopping soon after it starts
+	 */
+	private synchronized long getAutorestartDelay() {
+		if(System.currentTimeMillis() - lastStart > AUTORESTART_STABLE_TIME) {
+			restartsInARow = 0;
+		}
+		
+		long delay = restartsInARow == 0 ? 0 : Math.min(AUTORESTART_MAX_DELAY, AUTORESTART_DELAY << Math.min(restartsInARow - 1, 16));
+		
+		restartsInARow++;
+		
+		return delay;
+	}
+	
 	@Override
 	public void onServerStart(MinecraftServer server) {
-		setMetadata("STATUS", ServerStatus.STARTING.name());
-		setMetadata("SOURCE", Start.ip+":"+port);
+		synchronized (this) {
+			lastStart = System.currentTimeMillis();
+		}
+		//Queued first so SOURCE goes out in the same write as the STATUS
+		queueMetadata("SOURCE", Start.ip+":"+port);
+		transition(LifecycleState.STARTING);
 		checkForStartup();
 	}
 	
+	/**
+	 * Start the stopped process again after a delay. The server stays STARTING with its memory, cores and port
+	 * reserved until then, if it cannot start it is uploaded like any stopped server.
+	 */
+	private void scheduleAutorestart(long delay) {
+		manager.getTimer().schedule(() -> {
+			if(manager.isShuttingDown()) {
+				logger.info("Shutting down, uploading instead of autorestarting ("+name+")");
+				queueUpload();
+				return;
+			}
+			boolean queued = manager.getActions().submit(name, () -> {
+				try {
+					start();
+				} catch (ServerAlreadyOnlineException e) {
+					//Already up again, onServerStart takes it from here
+					e.printStackTrace();
+				} catch (IOException | RuntimeException e) {
+					logger.warning("Autorestart failed, uploading instead ("+name+")");
+					e.printStackTrace();
+					queueUpload();
+				}
+			});
+			if(!queued) {
+				logger.info("Too many actions waiting, retrying the autorestart in "+AUTORESTART_DELAY+"ms ("+name+")");
+				scheduleAutorestart(AUTORESTART_DELAY);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
 	@Override
 	public void onServerStop(MinecraftServer server) {
+		flushMetadata();
 		if(restarting) {
-			setMetadata("STATUS", ServerStatus.STARTING.name());
+			transition(LifecycleState.STARTING);
 			try {
 				copyRequiredFiles();
 			} catch (IOException e) {
@@ -485,36 +895,124 @@ public class Server extends ServerListener {
 			}
 			return;
 		}
-		if(hasMetadata("autorestart")) {
+		if(hasMetadata("autorestart") && !manager.isShuttingDown()) {
 			if(getMetadata("autorestart").equals("true")) {
-				try {
-					start();
-				} catch (IOException | ServerAlreadyOnlineException e) {
-					e.printStackTrace();
-				}
+				long delay = getAutorestartDelay();
+				logger.info("Autorestarting in "+delay+"ms ("+name+")");
+				transition(LifecycleState.STARTING);
+				scheduleAutorestart(delay);
 				return;
 			}
 		}
-		setMetadata("STATUS", ServerStatus.STOPPING.name());
-		try {
-			File folder = getFolder();
-			
+		queueUpload();
+	}
+	
+	/**
+	 * Give back what the server reserved and upload its folder, moving it through STOPPING and UPLOADING to OFFLINE
+	 */
+	private void queueUpload() {
+		manager.getMemoryLedger().release(name);
+		manager.releaseCpus(name);
+		manager.getPorts().release(name);
+		
+		transition(LifecycleState.STOPPING);
+		
+		logger.info("Queueing upload to MongoDB ("+name+")");
+		
+		File folder = getFolder();
+		AtomicBoolean prepared = new AtomicBoolean();
+		AtomicReference<String> uploaded = new AtomicReference<>();
+		
+		manager.getUploadPipeline().submit(name, progress -> {
 			logger.info("Uploading server to MongoDB ("+name+")");
+			transition(LifecycleState.STOPPING, LifecycleState.UPLOADING);
 			
-			uploadServer(getName(), folder, manager);
+			snapshotLock.lock();
+			try {
+				//Attempts after a failure only retry the transfer, the folder is prepared once and finished once it went through
+				if(!prepared.get()) {
+					prepareUpload(folder);
+					prepared.set(true);
+				}
+				uploaded.set(transferServer(getName(), getMetadata("type"), folder, manager, progress));
+			}finally {
+				snapshotLock.unlock();
+			}
 			
 			logger.info("Finished upload ("+name+")");
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}finally {
-			setMetadata("STATUS", ServerStatus.OFFLINE.name());
-			setMetadata("SOURCE", "");
+		}, success -> {
 			mc = null;
-		}
+			if(!success) {
+				//Stay STOPPING with our SOURCE so nobody starts the old snapshot, fixBrokenServers uploads it on our next boot
+				logger.severe("Could not upload, leaving the files on this node ("+name+")");
+				transition(LifecycleState.UPLOADING, LifecycleState.STOPPING);
+				return;
+			}
+			try {
+				finishUpload(name, folder, manager, uploaded.get());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			queueMetadata("SOURCE", "");
+			transition(LifecycleState.UPLOADING, LifecycleState.OFFLINE);
+		});
 	}
 
+	/**
+	 * Upload a snapshot of the server while it keeps running. Saving is turned off
+	 * for the duration so the world files are not written to while they are read.
+	 * Does nothing if the server is not online or already being uploaded.
+	 * @param progress where to report progress to, may be null
+	 * @throws IOException
+	 */
+	public void checkpoint(UploadProgress progress) throws IOException {
+		if(!manager.isSnapshotStoreEnabled() || state.get() != LifecycleState.ONLINE) {
+			return;
+		}
+		
+		if(!snapshotLock.tryLock()) {
+			return;
+		}
+		
+		try {
+			MinecraftServer mc = this.mc;
+			
+			if(mc == null || !mc.isRunning()) {
+				return;
+			}
+			
+			mc.consoleCommand("save-off");
+			try {
+				mc.consoleCommand("save-all");
+				Thread.sleep(manager.getCheckpointSaveDelay());
+				
+				SnapshotFilter rules = SnapshotFilter.load(getMetadata("type"), logger);
+				
+				manager.getSnapshotStore().upload(name, getFolder(), new PathFilter() {
+					@Override
+					public boolean accept(String path, File file) {
+						return !CHECKPOINT_EXCLUDES.contains(path) && rules.accept(path, file);
+					}
+					
+					@Override
+					public boolean descend(String path, File dir) {
+						return !CHECKPOINT_EXCLUDES.contains(path) && rules.descend(path, dir);
+					}
+				}, progress);
+			}finally {
+				if(mc.isRunning()) {
+					mc.consoleCommand("save-on");
+				}
+			}
+		} catch (ServerNotOnlineException e) {
+			logger.info("Stopped before the checkpoint finished ("+name+")");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}finally {
+			snapshotLock.unlock();
+		}
+	}
+	
 	public boolean isRunning() {
 		if(mc == null) {
 			return false;
@@ -522,11 +1020,76 @@ public class Server extends ServerListener {
 		return restarting || mc.isRunning();
 	}
 	
+	/**
+	 * @return the status from our own state, or from MongoDB while we are not running the server
+	 */
 	public ServerStatus getOnlineStatus() {
+		LifecycleState state = this.state.get();
+		if(state != LifecycleState.OFFLINE) {
+			return state.getStatus();
+		}
 		return ServerStatus.valueOf(getMetadata("STATUS", ServerStatus.OFFLINE.name()));
 	}
 	
+	public LifecycleState getState() {
+		return state.get();
+	}
+	
+	/**
+	 * Move to a new state if the current one allows it
+	 * @return true if the state changed
+	 */
+	public boolean transition(LifecycleState to) {
+		while(true) {
+			LifecycleState from = state.get();
+			if(!from.canMoveTo(to)) {
+				return false;
+			}
+			if(state.compareAndSet(from, to)) {
+				onTransition(from, to);
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Move to a new state only if the server is in the expected one
+	 * @return true if the state changed
+	 */
+	public boolean transition(LifecycleState from, LifecycleState to) {
+		if(!from.canMoveTo(to) || !state.compareAndSet(from, to)) {
+			return false;
+		}
+		onTransition(from, to);
+		return true;
+	}
+	
+	/**
+	 * The new STATUS is queued so the caller never waits on MongoDB
+	 */
+	private void onTransition(LifecycleState from, LifecycleState to) {
+		logger.fine(from+" -> "+to+" ("+name+")");
+		queueMetadata("STATUS", to.getStatus().name());
+	}
+	
 	public static void uploadServer(String serverName, File folder, ServerManager manager) throws IOException {
+		uploadServer(serverName, null, folder, manager, null);
+	}
+	
+	/**
+	 * Upload a server folder to MongoDB and remove it from the server folder
+	 * @param type the server type, picks the {@link SnapshotFilter} rules, may be null
+	 * @param progress where to report progress to, may be null
+	 */
+	public static void uploadServer(String serverName, String type, File folder, ServerManager manager, UploadProgress progress) throws IOException {
+		prepareUpload(folder);
+		finishUpload(serverName, folder, manager, transferServer(serverName, type, folder, manager, progress));
+	}
+	
+	/**
+	 * Strip what copyRequiredFiles puts back on start from a server folder
+	 */
+	private static void prepareUpload(File folder) throws IOException {
 		File spigotJar = new File(folder, "spigot.jar");
 		spigotJar.delete();
 		File plugins = new File(folder, "plugins/PlayerRealms/plugins");
@@ -552,26 +1115,77 @@ public class Server extends ServerListener {
 				
 			}
 		}
+	}
+	
+	/**
+	 * Send a prepared server folder to MongoDB. The folder is only read, so this can be tried again after a failure.
+	 * @return the id of the new snapshot, or null if it was uploaded as an archive
+	 */
+	private static String transferServer(String serverName, String type, File folder, ServerManager manager, UploadProgress progress) throws IOException {
+		SnapshotFilter filter = SnapshotFilter.load(type, manager.getLogger());
 		
-		File zipFile = new File(serverName+".zip");
-		if(zipFile.exists()) {
-			zipFile.delete();
+		if(manager.isSnapshotStoreEnabled()) {
+			String id = manager.getSnapshotStore().upload(serverName, folder, filter, progress);
+			
+			GridFSBucket bucket = GridFSBuckets.create(manager.getMongoDatabase(), "server_files");
+			
+			for(GridFSFile file : bucket.find(Filters.eq("filename", serverName+".zip"))) {
+				bucket.delete(file.getObjectId());
+			}
+			
+			return id;
 		}
 		
-		ZipUtil.pack(folder, zipFile);
+		uploadServerArchive(serverName, folder, manager, filter);
 		
-		GridFSBucket bucket = GridFSBuckets.create(manager.getMongoDatabase(), "server_files");
-
-		for(GridFSFile file : bucket.find(Filters.eq("filename", serverName+".zip"))) {
-			bucket.delete(file.getObjectId());
-		}
+		manager.getSnapshotStore().delete(serverName);
+		manager.getFolderCache().remove(serverName);
 		
-		try(FileInputStream fis = new FileInputStream(zipFile)){
-			bucket.uploadFromStream(zipFile.getName(), fis);
+		return null;
+	}
+	
+	/**
+	 * Move an uploaded folder into the folder cache, or delete it if it cannot be cached
+	 * @param id the snapshot id the folder was uploaded as, null if it was uploaded as an archive
+	 */
+	private static void finishUpload(String serverName, File folder, ServerManager manager, String id) throws IOException {
+		if(id != null && manager.getFolderCache().store(serverName, folder, id)) {
+			return;
 		}
 		
 		FileUtils.deleteDirectory(folder);
-		zipFile.delete();
+	}
+	
+	private static void uploadServerArchive(String serverName, File folder, ServerManager manager, PathFilter filter) throws IOException {
+		GridFSBucket bucket = GridFSBuckets.create(manager.getMongoDatabase(), "server_files");
+		
+		AdaptiveLevel compression = manager.getCompression();
+		ArchiveCodec codec = compression.getCodec();
+		int level = compression.getLevel();
+		
+		GridFSUploadStream upload = bucket.openUploadStream(serverName+".zip", new GridFSUploadOptions().metadata(new Document("codec", codec.getName())));
+		
+		try {
+			if(codec == ArchiveCodecs.DEFLATE) {
+				manager.getArchiveWriter().pack(folder, upload, level, filter);
+			}else {
+				//The codec does the compressing, the zip only stores the entries
+				try(OutputStream out = codec.compress(ArchiveUtils.shield(upload), level)){
+					ArchiveUtils.pack(folder, out, 0, filter);
+				}
+			}
+		}catch(IOException | RuntimeException e) {
+			upload.abort();
+			throw e;
+		}
+		
+		upload.close();
+
+		for(GridFSFile file : bucket.find(Filters.eq("filename", serverName+".zip"))) {
+			if(!file.getObjectId().equals(upload.getObjectId())) {
+				bucket.delete(file.getObjectId());
+			}
+		}
 	}
 	
 }
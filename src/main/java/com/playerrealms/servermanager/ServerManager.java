@@ -8,30 +8,63 @@ import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.gridfs.GridFSBucket;
 import com.mongodb.client.gridfs.GridFSBuckets;
 import com.mongodb.client.gridfs.GridFSFindIterable;
+import com.mongodb.client.gridfs.GridFSUploadStream;
 import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
 import com.mongodb.client.model.Filters;
 import com.playerrealms.common.RedisConstants;
 import com.playerrealms.common.ServerInformation;
 import com.playerrealms.common.ServerStatus;
 import com.playerrealms.mctool.ServerAlreadyOnlineException;
 import com.playerrealms.mctool.ServerNotOnlineException;
+import com.playerrealms.servermanager.codec.AdaptiveLevel;
+import com.playerrealms.servermanager.codec.ArchiveCodec;
+import com.playerrealms.servermanager.codec.ArchiveCodecs;
+import com.playerrealms.servermanager.codec.DeflateCodec;
 import com.playerrealms.servermanager.logging.CustomFormatter;
 import com.playerrealms.servermanager.redis.JedisAPI;
+import com.playerrealms.servermanager.redis.ManagerPresence;
 import com.playerrealms.servermanager.redis.PubSubRunner;
-import com.playerrealms.servermanager.tool.FileUtils;
+import com.playerrealms.servermanager.resource.CpuAllocator;
+import com.playerrealms.servermanager.resource.MemoryLedger;
+import com.playerrealms.servermanager.resource.PortAllocator;
+import com.playerrealms.servermanager.resource.ServerTelemetry;
+import com.playerrealms.servermanager.resource.TelemetryCollector;
+import com.playerrealms.servermanager.snapshot.CheckpointScheduler;
+import com.playerrealms.servermanager.snapshot.FolderCache;
+import com.playerrealms.servermanager.snapshot.SnapshotStore;
+import com.playerrealms.servermanager.snapshot.StagingArea;
+import com.playerrealms.servermanager.snapshot.UploadPipeline;
+import com.playerrealms.servermanager.snapshot.UploadProgress;
+import com.playerrealms.servermanager.tool.ArchiveUtils;
+import com.playerrealms.servermanager.tool.HashIndex;
+import com.playerrealms.servermanager.tool.HashedWheelTimer;
+import com.playerrealms.servermanager.tool.KeyedExecutor;
+import com.playerrealms.servermanager.tool.MemorySampler;
+import com.playerrealms.servermanager.tool.TemplateSync;
+import com.playerrealms.servermanager.tool.Threads;
 import com.playerrealms.servermanager.tool.OSUtils;
+import com.playerrealms.servermanager.tool.ParallelZipWriter;
 import com.playerrealms.servermanager.yaml.Configuration;
 import com.playerrealms.servermanager.yaml.YamlConfiguration;
 import org.bson.Document;
 import org.bson.types.ObjectId;
-import org.zeroturnaround.zip.ZipUtil;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
@@ -47,16 +80,65 @@ public class ServerManager implements Runnable {
 	
 	private Logger logger;
 	
-	private Map<String, Server> servers;
+	private final ServerRegistry servers = new ServerRegistry();
 
 	private int maxservers = 100;
 
-	private boolean shuttingDown = false;
+	private volatile boolean shuttingDown = false;
 	
 	private Thread rThread;
 	
 	private boolean accepting;
 	
+	private ManagerPresence presence;
+	
+	/**
+	 * Marks the UPDATE messages we publish so we can tell them from everyone else's, see {@link PubSubRunner#UPDATE_ORIGIN_CHANNEL}
+	 */
+	private final String managerId = UUID.randomUUID().toString();
+	
+	private ScheduledExecutorService scheduler;
+	
+	private long metadataFlushDelay;
+	
+	private SnapshotStore snapshotStore;
+	
+	private boolean snapshotStoreEnabled;
+	
+	private FolderCache folderCache;
+	
+	private ParallelZipWriter archiveWriter;
+	
+	private AdaptiveLevel compression;
+	
+	private UploadPipeline uploadPipeline;
+	
+	private CheckpointScheduler checkpoints;
+	
+	private long checkpointSaveDelay;
+	
+	private StagingArea stagingArea;
+	
+	private long prefetchWait;
+	
+	private TemplateSync templateSync;
+	
+	private HashIndex globalIndex;
+	
+	private MemoryLedger memoryLedger;
+	
+	private TelemetryCollector telemetry;
+	
+	private CpuAllocator cpuAllocator;
+	
+	private int[] cpuSlices;
+	
+	private PortAllocator ports;
+	
+	private KeyedExecutor actions;
+	
+	private HashedWheelTimer timer;
+	
 	public void setup(boolean downloadFromMongo) throws IOException {
 		logger = Logger.getLogger("Player Realms");
 		FileHandler fileHandler = new FileHandler("./manager.log", true);
@@ -81,21 +163,87 @@ public class ServerManager implements Runnable {
 		logger.info("Connecting to Mongo...");
 		mongoClient = new MongoClient(config.getString("mongo").equals(Start.ip) ? "127.0.0.1" : config.getString("mongo"), 27017);
 		mongoDatabase = mongoClient.getDatabase("playerrealms");
+		
+		if(config.getBoolean("virtual_threads", false)) {
+			if(Threads.setVirtual(true)) {
+				logger.info("Running blocking work on virtual threads");
+			}else {
+				logger.warning("virtual_threads is on but this JVM has no virtual threads, using platform threads");
+			}
+		}
+		
+		timer = new HashedWheelTimer("Timer", 1, TimeUnit.SECONDS, 512);
+		metadataFlushDelay = config.getLong("metadata_flush_ms", 5);
+		ForkJoinPool compressionPool = new ForkJoinPool(Math.max(1, config.getInt("compression_threads", Runtime.getRuntime().availableProcessors())));
+		ArchiveCodec codec = ArchiveCodecs.get(config.getString("archive_codec", DeflateCodec.NAME));
+		if(codec == null) {
+			logger.warning("Unknown archive codec "+config.getString("archive_codec")+", using deflate");
+			codec = ArchiveCodecs.DEFLATE;
+		}
+		compression = new AdaptiveLevel(codec, config.getInt("compression_level", codec.getDefaultLevel()), config.getBoolean("adaptive_compression", true));
+		archiveWriter = new ParallelZipWriter(compressionPool, compression.getLevel());
+		snapshotStore = new SnapshotStore(mongoDatabase, logger, compressionPool, compression);
+		snapshotStoreEnabled = config.getBoolean("snapshot_store", true);
+		uploadPipeline = new UploadPipeline(config.getInt("upload_threads", 2), config.getInt("upload_queue_size", 64), 3, timer, logger);
+		templateSync = new TemplateSync(config.getBoolean("template_hardlinks", true), logger);
+		folderCache = new FolderCache(new File("cache/servers"), OSUtils.mbToBytes(config.getLong("folder_cache_mb", 10240)), logger);
+		scheduler = Executors.newScheduledThreadPool(2, r -> {
+			Thread t = new Thread(r);
+			t.setName("ManagerScheduler");
+			t.setDaemon(true);
+			return t;
+		});
+		if(OSUtils.isUnix()) {
+			MemorySampler sampler = new MemorySampler(new File(config.getString("proc_root", "/proc")), new File(config.getString("cgroup_root", "/sys/fs/cgroup")));
+			sampler.start(scheduler, config.getLong("memory_sample_ms", 1000));
+			OSUtils.setMemorySampler(sampler);
+		}
+		telemetry = new TelemetryCollector(new File(config.getString("cgroup_root", "/sys/fs/cgroup")), new File(config.getString("proc_root", "/proc")), config.getInt("telemetry_samples", 360));
+		if(OSUtils.isUnix()) {
+			telemetry.start(scheduler, this::getRunningServerNames, TimeUnit.SECONDS.toMillis(config.getLong("telemetry_interval_seconds", 10)));
+		}
+		if(config.getBoolean("cpu_pinning", true) && OSUtils.isUnix()) {
+			cpuAllocator = new CpuAllocator(config.getInt("cpu_reserved", 1), config.getInt("cpu_cores", Runtime.getRuntime().availableProcessors()));
+			cpuSlices = new int[] {config.getInt("cpu_slice_default", 1), config.getInt("cpu_slice_premium", 2), config.getInt("cpu_slice_ultra", 4)};
+			scheduler.scheduleWithFixedDelay(() -> cpuAllocator.apply(telemetry), 10, 10, TimeUnit.SECONDS);
+		}
+		ports = new PortAllocator(config.getInt("port_range_start", 25566), config.getInt("port_range_end", 26565),
+				TimeUnit.SECONDS.toMillis(config.getLong("port_quarantine_seconds", 300)), true);
+		memoryLedger = new MemoryLedger(OSUtils::getMaxMemory, OSUtils::getFreeMemory, OSUtils.mbToBytes(config.getLong("memory_headroom_mb", 512)),
+				config.getDouble("memory_overcommit", 1), TimeUnit.SECONDS.toMillis(config.getLong("memory_warmup_seconds", 120)));
+		stagingArea = new StagingArea(new File("staging"), TimeUnit.SECONDS.toMillis(config.getLong("prefetch_ttl_seconds", 120)), config.getInt("prefetch_threads", 2), snapshotStore, folderCache, logger);
+		prefetchWait = TimeUnit.SECONDS.toMillis(config.getLong("prefetch_wait_seconds", 60));
+		presence = new ManagerPresence(Start.ip, config.getInt("presence_ttl_seconds", 5), OSUtils.mbToBytes(config.getLong("presence_mongo_step_mb", 256)),
+				TimeUnit.SECONDS.toMillis(config.getLong("presence_mongo_seconds", 60)));
+		scheduler.scheduleWithFixedDelay(stagingArea::expire, 30, 30, TimeUnit.SECONDS);
+		
+		globalIndex = new HashIndex(new File("cache/global.index"));
+		
 		if(downloadFromMongo) {
 			logger.info("Downloading global info...");
 			downloadGlobalData();
 			logger.info("Finished downloading");	
 		}
-		servers = Collections.synchronizedMap(new TreeMap<String, Server>(String.CASE_INSENSITIVE_ORDER));
 		
 		fixBrokenServers();
 		
+		actions = new KeyedExecutor(Threads.workers("Action", config.getInt("action_threads", 8), config.getInt("action_virtual_limit", 0)),
+				config.getInt("action_queue_per_server", 4));
+		
 		PubSubRunner runner = new PubSubRunner(this);
 		rThread = new Thread(runner);
 		rThread.setName("PubSubRunner");
 		rThread.setDaemon(true);
 		rThread.start();
 		
+		checkpointSaveDelay = TimeUnit.SECONDS.toMillis(config.getLong("checkpoint_save_delay", 5));
+		checkpoints = new CheckpointScheduler(this, config.getLong("checkpoint_interval_minutes", 15));
+		if(snapshotStoreEnabled) {
+			checkpoints.start();
+		}
+		
+		long heartbeat = config.getLong("presence_heartbeat_ms", 1000);
+		
 		Thread updater = new Thread(new Runnable() {
 			
 			@Override
@@ -103,7 +251,7 @@ public class ServerManager implements Runnable {
 				while(true) {
 					try {
 						updateServerPresence();
-						Thread.sleep(1000);
+						Thread.sleep(heartbeat);
 					} catch (InterruptedException e) {
 						e.printStackTrace();
 					} catch(Exception e){
@@ -112,7 +260,7 @@ public class ServerManager implements Runnable {
 				}
 			}
 		});
-		updater.setName("MongoUpdater");
+		updater.setName("PresenceUpdater");
 		updater.setDaemon(true);
 		updater.start();
 		
@@ -165,23 +313,31 @@ public class ServerManager implements Runnable {
 		
 	}
 	
+	/**
+	 * Stop every running server and wait for their uploads, see {@link FleetShutdown}
+	 */
 	public void turnOffAllServers() {
-		for(Server server : new ArrayList<>(servers.values())) {
-			if(server.isRunning()) {
-				logger.info("Shutting down "+server.getName());
-				Thread t = new Thread(new Runnable() {
-					
-					@Override
-					public void run() {
-						try {
-							server.stop(false);
-						} catch (ServerNotOnlineException | IOException e) {
-							e.printStackTrace();
-						}
-					}
-				});
-				t.setName(server.getName()+"-Shutdown");
-				t.start();
+		shuttingDown = true;
+		accepting = false;
+		checkpoints.stop();
+		
+		FleetShutdown shutdown = new FleetShutdown(this, config.getInt("shutdown_stop_threads", 4), config.getInt("shutdown_upload_threads", 4),
+				TimeUnit.SECONDS.toMillis(config.getLong("shutdown_stop_seconds", 120)), TimeUnit.SECONDS.toMillis(config.getLong("shutdown_deadline_seconds", 900)));
+		
+		try {
+			if(shutdown.run()) {
+				logger.info("All servers stopped and uploaded");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		//Status changes are written in the background, get the last ones into MongoDB before we exit
+		for(Server server : getServers()) {
+			try {
+				server.flushMetadata();
+			}catch(Exception e) {
+				e.printStackTrace();
 			}
 		}
 	}
@@ -239,7 +395,7 @@ public class ServerManager implements Runnable {
 					logger.info("We have the files for "+us.getPath()+", uploading to mongo...");
 					
 					try {
-						Server.uploadServer(server.getString("server_name"), us, this);
+						Server.uploadServer(server.getString("server_name"), meta.getString("type"), us, this, null);
 					} catch (IOException e) {
 						e.printStackTrace();
 					}
@@ -348,6 +504,12 @@ public class ServerManager implements Runnable {
 					}else if(args[0].equalsIgnoreCase("global")) {
 						String path = args[1];
 						File file = new File(path);
+						ArchiveCodec codec = args.length > 2 ? ArchiveCodecs.get(args[2]) : ArchiveCodecs.DEFLATE;
+						
+						if(codec == null) {
+							logger.info("Unknown codec "+args[2]);
+							continue;
+						}
 						
 						GridFSBucket bucket = GridFSBuckets.create(mongoDatabase, "global_files");
 
@@ -359,7 +521,17 @@ public class ServerManager implements Runnable {
 									bucket.delete(fs_file.getObjectId());
 								}
 							});
-							ObjectId id = bucket.uploadFromStream(file.getName(), fis);
+							GridFSUploadOptions options = new GridFSUploadOptions().metadata(new Document("codec", codec.getName()));
+							ObjectId id;
+							if(codec == ArchiveCodecs.DEFLATE) {
+								id = bucket.uploadFromStream(file.getName(), fis, options);
+							}else {
+								GridFSUploadStream upload = bucket.openUploadStream(file.getName(), options);
+								try(OutputStream out = codec.compress(upload, compression.getLevel())){
+									ArchiveUtils.copy(fis, out, new byte[64 * 1024]);
+								}
+								id = upload.getObjectId();
+							}
 							logger.info("Uploaded to "+id);
 							
 							JedisAPI.publish(RedisConstants.MANAGER_GLOBAL_CHANNEL, RedisConstants.NEW_GLOBAL_FILE+" 0");
@@ -390,6 +562,64 @@ public class ServerManager implements Runnable {
 						} catch (IOException e) {
 							e.printStackTrace();
 						}
+					}else if(args[0].equalsIgnoreCase("uploads")) {
+						logger.info("Uploads: "+uploadPipeline.getActiveCount()+" running, "+uploadPipeline.getQueueDepth()+" queued, "
+								+uploadPipeline.getCompletedCount()+" completed, "+uploadPipeline.getFailedCount()+" failed");
+						for(UploadProgress progress : uploadPipeline.getUploads()) {
+							logger.info(progress.toString());
+						}
+						for(UploadProgress progress : uploadPipeline.getCheckpoints()) {
+							logger.info("Checkpoint "+progress);
+						}
+					}else if(args[0].equalsIgnoreCase("memory")) {
+						logger.info("Memory: "+(long) OSUtils.byteToMegabyte(memoryLedger.getCommitted())+"MB committed of "
+								+(long) OSUtils.byteToMegabyte(memoryLedger.getPhysical())+"MB physical, "
+								+(long) OSUtils.byteToMegabyte(OSUtils.getFreeMemory())+"MB available, "
+								+(long) OSUtils.byteToMegabyte(memoryLedger.getFree())+"MB admittable");
+						for(Map.Entry<String, Long> entry : memoryLedger.getReservations().entrySet()) {
+							logger.info(entry.getKey()+" "+(long) OSUtils.byteToMegabyte(entry.getValue())+"MB");
+						}
+					}else if(args[0].equalsIgnoreCase("stats")) {
+						if(args.length < 2) {
+							logger.info("stats <server>");
+							continue;
+						}
+						ServerTelemetry stats = telemetry.getTelemetry(args[1]);
+						if(stats == null || stats.getCount() == 0) {
+							logger.info("No telemetry for "+args[1]);
+						}else {
+							logger.info(args[1]+" over "+stats.getCount()+" samples");
+							logger.info("CPU millicores: now "+stats.getLatest(ServerTelemetry.CPU)+", avg "+stats.getAverage(ServerTelemetry.CPU)
+									+", p50 "+stats.getPercentile(ServerTelemetry.CPU, 50)+", p95 "+stats.getPercentile(ServerTelemetry.CPU, 95)+", p99 "+stats.getPercentile(ServerTelemetry.CPU, 99));
+							logger.info("RSS MB: now "+(long) OSUtils.byteToMegabyte(stats.getLatest(ServerTelemetry.RSS))+", p95 "+(long) OSUtils.byteToMegabyte(stats.getPercentile(ServerTelemetry.RSS, 95)));
+							logger.info("Disk KB/s: now "+stats.getLatest(ServerTelemetry.DISK) / 1024+", p95 "+stats.getPercentile(ServerTelemetry.DISK, 95) / 1024);
+							logger.info("Network KB/s: now "+stats.getLatest(ServerTelemetry.NET) / 1024+", p95 "+stats.getPercentile(ServerTelemetry.NET, 95) / 1024);
+						}
+					}else if(args[0].equalsIgnoreCase("cpus")) {
+						if(cpuAllocator == null) {
+							logger.info("Servers are not pinned to cores");
+							continue;
+						}
+						logger.info("Servers per core: "+Arrays.toString(cpuAllocator.getLoad()));
+						for(Server server : getServers()) {
+							String cpus = cpuAllocator.getSlice(server.getName());
+							if(cpus != null) {
+								logger.info(server.getName()+" "+cpus);
+							}
+						}
+					}else if(args[0].equalsIgnoreCase("ports")) {
+						logger.info("Ports: "+ports.getLeasedCount()+" leased, "+ports.getQuarantinedCount()+" quarantined of "+ports.getCapacity()
+								+" ("+Math.round(ports.getUtilisation() * 100)+"% used)");
+					}else if(args[0].equalsIgnoreCase("actions")) {
+						logger.info("Actions: "+actions.getActiveKeys()+" servers busy, "+actions.getQueueDepth()+" queued, "+actions.getCompletedCount()+" completed, "
+								+actions.getFailedCount()+" failed, "+actions.getRejectedCount()+" rejected, wait avg "+actions.getAverageWait()+"ms max "+actions.getMaxWait()+"ms");
+					}else if(args[0].equalsIgnoreCase("gc")) {
+						logger.info("Collecting unreferenced snapshot blobs");
+						snapshotStore.collectGarbage(TimeUnit.HOURS.toMillis(1));
+					}else if(args[0].equalsIgnoreCase("managers")) {
+						for(Map.Entry<String, Map<String, String>> entry : ManagerPresence.readAll().entrySet()) {
+							logger.info(entry.getKey()+" "+entry.getValue());
+						}
 					}else if(args[0].equalsIgnoreCase("disallow")) {
 						changeAcceptingServers(false);
 					}else if(args[0].equalsIgnoreCase("allow")) {
@@ -441,25 +671,49 @@ public class ServerManager implements Runnable {
 		}
 	}
 	
+	/**
+	 * Heartbeat our presence and load to Redis, MongoDB is only written when {@link ManagerPresence} says our capacity changed
+	 */
 	public void updateServerPresence() {
 		if(shuttingDown) {
 			return;
 		}
-		MongoCollection<Document> managerCollection = mongoDatabase.getCollection("managers");
 		
 		long free = 0;
 		
 		try{
-			free = OSUtils.getFreeMemory();
+			free = memoryLedger.getFree();
 		}catch(Exception e){
 			e.printStackTrace();
 		}
 		
+		try {
+			Map<String, String> load = new HashMap<>();
+			load.put("ip", Start.ip);
+			load.put("port", String.valueOf(Start.DEFAULT_PORT));
+			load.put("free", String.valueOf(free));
+			load.put("committed", String.valueOf(memoryLedger.getCommitted()));
+			load.put("physical", String.valueOf(memoryLedger.getPhysical()));
+			load.put("servers", String.valueOf(getRunningServerNames().size()));
+			load.put("accept", String.valueOf(accepting));
+			presence.heartbeat(load);
+		}catch(Exception e) {
+			e.printStackTrace();
+		}
+		
+		long now = System.currentTimeMillis();
+		
+		if(!presence.isMongoDue(free, accepting, now)) {
+			return;
+		}
+		
+		MongoCollection<Document> managerCollection = mongoDatabase.getCollection("managers");
+		
 		Document first = managerCollection.findOneAndUpdate(Filters.eq("ip", Start.ip), new Document()
 				.append("$set", 
 						new Document("port", Start.DEFAULT_PORT)
 						.append("free", free)
-						.append("time", System.currentTimeMillis()))
+						.append("time", now))
 				);
 		
 		if(first == null) {
@@ -467,14 +721,22 @@ public class ServerManager implements Runnable {
 					.append("ip", Start.ip)
 					.append("port", Start.DEFAULT_PORT)
 					.append("free", free)
-					.append("time", System.currentTimeMillis());
+					.append("time", now);
 			managerCollection.insertOne(doc);
 			changeAcceptingServers(true);
 			logger.info("Created us in database since it was our first time");
 		}
+		
+		presence.onMongoWritten(free, accepting, now);
 	}
 	
 	public void deletePresence() {
+		try {
+			presence.delete();
+		}catch(Exception e) {
+			e.printStackTrace();
+		}
+		
 		MongoCollection<Document> managerCollection = mongoDatabase.getCollection("managers");
 		
 		managerCollection.findOneAndDelete(Filters.eq("ip", Start.ip));
@@ -495,9 +757,8 @@ public class ServerManager implements Runnable {
 	}
 	
 	public boolean stopServer(String name, boolean kill) throws ServerNotOnlineException, IOException {
-		if(servers.containsKey(name)) {
-			Server server = servers.get(name);
-			
+		Server server = servers.get(name);
+		if(server != null) {
 			server.stop(kill);
 			updateServerPresence();
 			return true;
@@ -510,9 +771,9 @@ public class ServerManager implements Runnable {
 		boolean isOnline = false;
 		MongoCollection<Document> col = getMongoDatabase().getCollection("servers");
 	
-		if(servers.containsKey(name)) {
-			Server server = servers.get(name);
-			isOnline = server.isRunning();
+		Server server = servers.get(name);
+		if(server != null) {
+			isOnline = server.getOnlineStatus() != ServerStatus.OFFLINE;
 		}else {
 			
 			FindIterable<Document> found = col.find(Filters.eq("server_name_lower", name.toLowerCase()));
@@ -552,16 +813,24 @@ public class ServerManager implements Runnable {
 			bucket.rename(found.first().getObjectId(), target+".zip");	
 		}
 		
+		if(server != null) {
+			//The server keeps its old name, the next start registers a new one
+			servers.remove(server);
+		}
+		
+		snapshotStore.rename(name, target);
+		folderCache.remove(name);
+		stagingArea.remove(name);
+		
 		JedisAPI.publish(RedisConstants.MANAGER_UPDATE_CHANNEL, name+" "+RedisConstants.DELETE);
-		JedisAPI.publish(RedisConstants.MANAGER_UPDATE_CHANNEL, target+" "+RedisConstants.UPDATE);
+		announceUpdate(target);
 		
 		return true;
 	}
 	
 	public boolean consoleCommand(String name, String cmd) throws ServerNotOnlineException, IOException {
-		if(servers.containsKey(name)) {
-			Server server = servers.get(name);
-			
+		Server server = servers.get(name);
+		if(server != null) {
 			server.consoleCommand(cmd);
 			return true;
 		}else {
@@ -569,17 +838,54 @@ public class ServerManager implements Runnable {
 		}
 	}
 	
+	/**
+	 * Change the metadata of one of our servers for a request. Written before this returns so whoever
+	 * gets the answer, or reacts to the UPDATE, reads the new value from MongoDB.
+	 */
 	public boolean alterMetadata(String name, String key, String val) {
-		if(servers.containsKey(name)) {
-			Server server = servers.get(name);
-			
-			server.setMetadata(key, val);
+		Server server = servers.get(name);
+		if(server != null) {
+			//Queued first so an older queued value for the key cannot be written after this one
+			server.queueMetadata(key, val);
+			server.flushMetadata();
 			return true;
 		}else {
 			return false;
 		}
 	}
 	
+	public String getManagerId() {
+		return managerId;
+	}
+	
+	/**
+	 * Tell everyone the data of a server changed. The message on the update channel is the plain
+	 * <code>&lt;name&gt; UPDATE</code>, our mark on the origin channel goes out first so we can skip it.
+	 */
+	public void announceUpdate(String name) {
+		JedisAPI.publish(PubSubRunner.UPDATE_ORIGIN_CHANNEL, name+" "+managerId);
+		JedisAPI.publish(RedisConstants.MANAGER_UPDATE_CHANNEL, name+" "+RedisConstants.UPDATE);
+	}
+	
+	/**
+	 * Called when an UPDATE for a server is published on the update channel
+	 * @param name the server name
+	 */
+	public void onServerUpdated(String name) {
+		Server server = servers.get(name);
+		
+		if(server != null) {
+			server.onUpdateAnnounced();
+		}
+	}
+	
+	/**
+	 * @return true once the manager started stopping all servers
+	 */
+	public boolean isShuttingDown() {
+		return shuttingDown;
+	}
+	
 	public boolean isAccepting() {
 		return accepting;
 	}
@@ -588,19 +894,23 @@ public class ServerManager implements Runnable {
 		this.accepting = accepting;
 		MongoCollection<Document> managerCollection = mongoDatabase.getCollection("managers");
 		
+		long free = memoryLedger.getFree();
+		long now = System.currentTimeMillis();
+		
 		managerCollection.findOneAndUpdate(Filters.eq("ip", Start.ip), new Document()
 				.append("$set", 
 						new Document("port", Start.DEFAULT_PORT)
-						.append("free", OSUtils.getFreeMemory())
-						.append("time", System.currentTimeMillis())
+						.append("free", free)
+						.append("time", now)
 						.append("accept", accepting))
 				);
+		
+		presence.onMongoWritten(free, accepting, now);
 	}
 	
 	public boolean restartServer(String name) throws ServerNotOnlineException, IOException {
-		if(servers.containsKey(name)) {
-			Server server = servers.get(name);
-			
+		Server server = servers.get(name);
+		if(server != null) {
 			server.restart();
 			return true;
 		}else {
@@ -608,34 +918,60 @@ public class ServerManager implements Runnable {
 		}
 	}
 	
+	/**
+	 * Start downloading a stopped server ahead of its start request
+	 * @return true if a prefetch was started
+	 */
+	public boolean prefetchServer(String name) {
+		
+		if(!snapshotStoreEnabled || !accepting || servers.contains(name)) {
+			return false;
+		}
+		
+		Document doc = getServerData(name);
+		
+		if(doc == null) {
+			return false;
+		}
+		
+		Server server = new Server(name, doc, this, logger);
+		
+		if(server.getOnlineStatus() != ServerStatus.OFFLINE || server.getFolder().exists()) {
+			return false;
+		}
+		
+		return stagingArea.prefetch(server.getName());
+	}
+	
 	public boolean startServer(String name) throws IOException, ServerAlreadyOnlineException {
 		
 		Document doc = getServerData(name);
 		
 		if(doc != null){
-			Server server = null;
-			boolean isNew = false;
-			if(servers.containsKey(name)) {
-				server = servers.get(name);
+			Server server = servers.get(name);
+			if(server != null) {
+				server.updateMetadataCache(doc);
 			}else {
-				server = new Server(name, this,logger);
-				isNew = true;
+				server = servers.register(new Server(name, doc, this, logger));
 			}
 			
-			if(server.getOnlineStatus() != ServerStatus.OFFLINE) {
+			//An OFFLINE server of ours may have been started by another manager since, so MongoDB is checked too
+			if(server.getOnlineStatus() != ServerStatus.OFFLINE || !server.transition(LifecycleState.OFFLINE, LifecycleState.DOWNLOADING)) {
 				throw new ServerAlreadyOnlineException();
 			}
 			
-			if(OSUtils.getFreeMemory() < server.getMemoryUsage() + 8192) {
+			if(!memoryLedger.reserve(server.getName(), OSUtils.mbToBytes(server.getMemoryUsage()))) {
+				server.transition(LifecycleState.OFFLINE);
 				throw new OutOfMemoryError();
 			}
 			
-			server.start();
-			updateServerPresence();
-			
-			if(isNew) {
-				servers.put(name.toLowerCase(), server);
+			try {
+				server.start();
+			}catch(IOException | ServerAlreadyOnlineException | RuntimeException e) {
+				server.abortStart();
+				throw e;
 			}
+			updateServerPresence();
 			
 			return true;
 		}
@@ -644,17 +980,14 @@ public class ServerManager implements Runnable {
 	}
 	
 	public boolean deleteServer(String name, boolean justData) throws ServerAlreadyOnlineException {
-		Server server = null;
-		boolean ours = false;
-		if(!servers.containsKey(name)) {
+		Server server = servers.get(name);
+		boolean ours = server != null;
+		if(!ours) {
 			try {
 				server = new Server(name, this,logger);
 			}catch(Exception e) {
 				return false;
 			}
-		}else {
-			server = servers.get(name);
-			ours = true;
 		}
 		if(server.hasMetadata("STATUS") && !server.getMetadata("STATUS").equals(ServerStatus.OFFLINE.name()) && !ours) {
 			throw new ServerAlreadyOnlineException();
@@ -677,12 +1010,20 @@ public class ServerManager implements Runnable {
 				return false;
 			}
 			
+			if(ours && !justData) {
+				servers.remove(server);
+			}
+			
 			GridFSBucket bucket = GridFSBuckets.create(mongoDatabase, "server_files");
 			
 			for(GridFSFile file : bucket.find(Filters.eq("filename", deleted.getString("server_name")+".zip"))) {
 				bucket.delete(file.getObjectId());
 			}
 			
+			snapshotStore.delete(deleted.getString("server_name"));
+			folderCache.remove(deleted.getString("server_name"));
+			stagingArea.remove(deleted.getString("server_name"));
+			
 			JedisAPI.publish(RedisConstants.MANAGER_UPDATE_CHANNEL, name+" "+RedisConstants.DELETE);
 			
 		} catch (ServerNotOnlineException e) {
@@ -710,49 +1051,290 @@ public class ServerManager implements Runnable {
 		
 		col.insertOne(serverData);
 		
-		JedisAPI.publish(RedisConstants.MANAGER_UPDATE_CHANNEL, name+" "+RedisConstants.UPDATE);
+		announceUpdate(name);
 		
 		return true;
 	}
 	
 	
 	
+	public Logger getLogger() {
+		return logger;
+	}
+	
 	public MongoDatabase getMongoDatabase() {
 		return mongoDatabase;
 	}
 	
-	public void downloadGlobalData() throws FileNotFoundException, IOException {
+	public SnapshotStore getSnapshotStore() {
+		return snapshotStore;
+	}
+	
+	/**
+	 * @return true if servers are uploaded to the {@link SnapshotStore}, false to upload a single zip
+	 */
+	public boolean isSnapshotStoreEnabled() {
+		return snapshotStoreEnabled;
+	}
+	
+	/**
+	 * @return local cache of stopped server folders
+	 */
+	public FolderCache getFolderCache() {
+		return folderCache;
+	}
+	
+	/**
+	 * @return writer for server zip archives, compresses on the nodes compression pool
+	 */
+	public ParallelZipWriter getArchiveWriter() {
+		return archiveWriter;
+	}
+	
+	/**
+	 * @return the codec new archives and blobs are written with, and the level to use right now
+	 */
+	public AdaptiveLevel getCompression() {
+		return compression;
+	}
+	
+	/**
+	 * @return how long to wait after save-all before a checkpoint reads the world, in ms
+	 */
+	public long getCheckpointSaveDelay() {
+		return checkpointSaveDelay;
+	}
+	
+	/**
+	 * @return the servers this manager has started
+	 */
+	public List<Server> getServers() {
+		return servers.getServers();
+	}
+	
+	/**
+	 * Give a server its slice of cores, sized by its tier
+	 * @return the cores as a cpuset list, or null if servers are not pinned
+	 */
+	public String allocateCpus(Server server) {
+		if(cpuAllocator == null) {
+			return null;
+		}
+		
+		int size = cpuSlices[0];
+		
+		if(server.isUltra()) {
+			size = cpuSlices[2];
+		}else if(server.isPremium()) {
+			size = cpuSlices[1];
+		}
+		
+		return cpuAllocator.allocate(server.getName(), size);
+	}
+	
+	public void releaseCpus(String name) {
+		if(cpuAllocator != null) {
+			cpuAllocator.release(name);
+		}
+	}
+	
+	/**
+	 * @return runs startup timeouts, autorestart delays and other deadlines
+	 */
+	public HashedWheelTimer getTimer() {
+		return timer;
+	}
+	
+	/**
+	 * @return runs requests for a server one at a time, in order
+	 */
+	public KeyedExecutor getActions() {
+		return actions;
+	}
+	
+	/**
+	 * @return the ports servers are started on
+	 */
+	public PortAllocator getPorts() {
+		return ports;
+	}
+	
+	/**
+	 * @return resource usage of running server containers
+	 */
+	public TelemetryCollector getTelemetry() {
+		return telemetry;
+	}
+	
+	/**
+	 * @return names of servers that are starting or online
+	 */
+	public List<String> getRunningServerNames() {
+		List<String> names = new ArrayList<>();
+		for(Server server : getServers()) {
+			LifecycleState state = server.getState();
+			if(state == LifecycleState.ONLINE || state == LifecycleState.STARTING) {
+				names.add(server.getName());
+			}
+		}
+		return names;
+	}
+	
+	/**
+	 * @return memory reserved by running servers
+	 */
+	public MemoryLedger getMemoryLedger() {
+		return memoryLedger;
+	}
+	
+	/**
+	 * @return lays commons and server type folders over server folders
+	 */
+	public TemplateSync getTemplateSync() {
+		return templateSync;
+	}
+	
+	/**
+	 * @return server folders downloaded ahead of their start
+	 */
+	public StagingArea getStagingArea() {
+		return stagingArea;
+	}
+	
+	/**
+	 * @return how long a start waits for a prefetch of the same server to finish, in ms
+	 */
+	public long getPrefetchWait() {
+		return prefetchWait;
+	}
+	
+	public UploadPipeline getUploadPipeline() {
+		return uploadPipeline;
+	}
+	
+	public ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+	
+	/**
+	 * How long queued metadata changes are held before being written, 0 to write them straight away
+	 */
+	public long getMetadataFlushDelay() {
+		return metadataFlushDelay;
+	}
+	
+	/**
+	 * Bring the global files up to date, only downloading files whose MD5 changed
+	 * and only unpacking archives that changed since they were last unpacked
+	 */
+	public synchronized void downloadGlobalData() throws FileNotFoundException, IOException {
 
 		GridFSBucket bucket = GridFSBuckets.create(mongoDatabase, "global_files");
 		
-		for(GridFSFile fs_file : bucket.find()) {
+		List<GridFSFile> files = bucket.find().into(new ArrayList<>());
+		
+		if(files.isEmpty()) {
+			return;
+		}
+		
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(files.size(), Math.max(1, config.getInt("global_download_threads", 4))), Threads.factory("GlobalDownload", true));
+		
+		List<Future<?>> downloads = new ArrayList<>();
+		
+		try {
+			for(GridFSFile fs_file : files) {
+				downloads.add(pool.submit(() -> {
+					downloadGlobalFile(bucket, fs_file);
+					return null;
+				}));
+			}
 			
-			logger.info("Downloading "+fs_file.getFilename()+" "+fs_file.getUploadDate()+" "+fs_file.getMD5());
-			boolean downloadReq = true;
-			File file = new File(fs_file.getFilename());
-			if(!file.exists()) {
-				file.createNewFile();
-			}else {
-				String computed = FileUtils.computeMD5(file);
-				if(computed.equals(fs_file.getMD5())) {
-					logger.info("MD5 is equal, skipping download");
-					downloadReq = false;
-				}else {
-					logger.info("Different md5 "+computed+" "+fs_file.getMD5());
+			IOException failure = null;
+			
+			for(Future<?> download : downloads) {
+				try {
+					download.get();
+				} catch (ExecutionException e) {
+					if(e.getCause() instanceof IOException) {
+						if(failure == null) {
+							failure = (IOException) e.getCause();
+						}
+					}else {
+						throw new IOException(e.getCause());
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
 				}
 			}
-			if(downloadReq) {
-				try(FileOutputStream fos = new FileOutputStream(file)){
-					bucket.downloadToStream(fs_file.getObjectId(), fos);
+			
+			if(failure != null) {
+				throw failure;
+			}
+		}finally {
+			pool.shutdownNow();
+			globalIndex.save();
+		}
+		
+		//Archives can overlap, unpack them one at a time in bucket order
+		for(GridFSFile fs_file : files) {
+			File file = new File(fs_file.getFilename());
+			
+			if(fs_file.getMD5().equals(globalIndex.getUnpacked(file))) {
+				continue;
+			}
+			
+			logger.info("Unpacking "+fs_file.getFilename());
+			
+			ArchiveCodec codec = ArchiveCodecs.fromMetadata(fs_file.getMetadata());
+			
+			//Unpacks by renaming files into place, templates are hardlinked into running servers
+			if(codec == ArchiveCodecs.DEFLATE) {
+				try(InputStream in = new BufferedInputStream(new FileInputStream(file))){
+					ArchiveUtils.unpack(in, new File("./"));
+				}
+			}else {
+				try(InputStream in = codec.decompress(new FileInputStream(file))){
+					ArchiveUtils.unpack(in, new File("./"));
 				}
 			}
 			
-			ZipUtil.unpack(file, new File("./"));
+			globalIndex.setUnpacked(file, fs_file.getMD5());
+			globalIndex.save();
 		}
-		
 
 	}
 	
+	private void downloadGlobalFile(GridFSBucket bucket, GridFSFile fs_file) throws IOException {
+		File file = new File(fs_file.getFilename());
+		
+		if(file.exists()) {
+			String computed = globalIndex.hash(file);
+			if(computed.equals(fs_file.getMD5())) {
+				logger.info("MD5 of "+fs_file.getFilename()+" is equal, skipping download");
+				return;
+			}
+			logger.info("Different md5 "+computed+" "+fs_file.getMD5());
+		}
+		
+		logger.info("Downloading "+fs_file.getFilename()+" "+fs_file.getUploadDate()+" "+fs_file.getMD5());
+		
+		File parent = file.getAbsoluteFile().getParentFile();
+		if(!parent.exists()) {
+			parent.mkdirs();
+		}
+		
+		File temp = new File(parent, file.getName()+".download");
+		
+		try(FileOutputStream fos = new FileOutputStream(temp)){
+			bucket.downloadToStream(fs_file.getObjectId(), fos);
+		}
+		
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		
+		globalIndex.put(file, fs_file.getMD5());
+	}
+	
 	
 	public static Configuration downloadConfig() throws IOException {
 		URL url = new URL("config url");
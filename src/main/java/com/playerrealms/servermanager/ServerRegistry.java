@@ -0,0 +1,63 @@
+package com.playerrealms.servermanager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The servers this manager has started, looked up by name regardless of case.
+ * Lookups never lock, registering a server that is already there returns the existing one.
+ */
+public class ServerRegistry {
+
+	private final ConcurrentMap<String, Server> servers = new ConcurrentHashMap<>();
+
+	/**
+	 * @return the key a server name is stored under
+	 */
+	public static String normalise(String name) {
+		return name.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @return the server with this name, or null if we never started it
+	 */
+	public Server get(String name) {
+		return servers.get(normalise(name));
+	}
+
+	/**
+	 * Add a server unless one with the same name is already registered
+	 * @return the registered server, which is not the given one if another got there first
+	 */
+	public Server register(Server server) {
+		Server existing = servers.putIfAbsent(normalise(server.getName()), server);
+		return existing == null ? server : existing;
+	}
+
+	/**
+	 * Remove the server if it is still the one registered under its name
+	 * @return true if it was removed
+	 */
+	public boolean remove(Server server) {
+		return servers.remove(normalise(server.getName()), server);
+	}
+
+	public boolean contains(String name) {
+		return servers.containsKey(normalise(name));
+	}
+
+	/**
+	 * @return a copy of the registered servers
+	 */
+	public List<Server> getServers() {
+		return new ArrayList<>(servers.values());
+	}
+
+	public int size() {
+		return servers.size();
+	}
+
+}
@@ -0,0 +1,64 @@
+package com.playerrealms.servermanager.codec;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+/**
+ * Picks the compression level to use right now. The configured level is used while the
+ * node has spare CPU, and it is scaled down towards the fastest level as the load
+ * average approaches the number of cores.
+ */
+public class AdaptiveLevel {
+
+	private final ArchiveCodec codec;
+	
+	private final int level;
+	
+	private final boolean adaptive;
+	
+	private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+	
+	/**
+	 * @param codec the codec levels are picked for
+	 * @param level the level to use on an idle node, {@link ArchiveCodec#DEFAULT_LEVEL} for the codecs default
+	 * @param adaptive false to always use the configured level
+	 */
+	public AdaptiveLevel(ArchiveCodec codec, int level, boolean adaptive) {
+		this.codec = codec;
+		if(level == ArchiveCodec.DEFAULT_LEVEL) {
+			level = codec.getDefaultLevel();
+		}
+		this.level = Math.max(codec.getMinLevel(), Math.min(codec.getMaxLevel(), level));
+		this.adaptive = adaptive;
+	}
+	
+	public ArchiveCodec getCodec() {
+		return codec;
+	}
+	
+	public int getLevel() {
+		if(!adaptive) {
+			return level;
+		}
+		
+		double load = os.getSystemLoadAverage() / os.getAvailableProcessors();
+		
+		if(load < 0) {
+			return level;
+		}
+		
+		if(load >= 1.0) {
+			return codec.getMinLevel();
+		}
+		
+		if(load <= 0.5) {
+			return level;
+		}
+		
+		//Linear from the configured level at 50% load down to the fastest level at 100%
+		double scale = (1.0 - load) / 0.5;
+		
+		return codec.getMinLevel() + (int) Math.round((level - codec.getMinLevel()) * scale);
+	}
+	
+}
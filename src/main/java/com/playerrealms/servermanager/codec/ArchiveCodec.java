@@ -0,0 +1,43 @@
+package com.playerrealms.servermanager.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A compression format for server snapshots and archives. The name is stored in the
+ * GridFS metadata of everything written with it so it can be read back later.
+ */
+public interface ArchiveCodec {
+
+	/**
+	 * Level that stands for the codecs own default, like {@link java.util.zip.Deflater#DEFAULT_COMPRESSION}
+	 */
+	int DEFAULT_LEVEL = -1;
+	
+	String getName();
+	
+	/**
+	 * @return the fastest level this codec supports
+	 */
+	int getMinLevel();
+	
+	/**
+	 * @return the strongest level this codec supports
+	 */
+	int getMaxLevel();
+	
+	int getDefaultLevel();
+	
+	/**
+	 * Wrap a stream so everything written to it is compressed. Closing the returned
+	 * stream closes the given one.
+	 */
+	OutputStream compress(OutputStream out, int level) throws IOException;
+	
+	/**
+	 * Wrap a stream written by {@link #compress(OutputStream, int)}
+	 */
+	InputStream decompress(InputStream in) throws IOException;
+	
+}
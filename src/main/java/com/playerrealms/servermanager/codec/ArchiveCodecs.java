@@ -0,0 +1,73 @@
+package com.playerrealms.servermanager.codec;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bson.Document;
+
+public class ArchiveCodecs {
+
+	public static final ArchiveCodec DEFLATE = new DeflateCodec();
+	
+	public static final ArchiveCodec LZ4 = new Lz4Codec();
+	
+	public static final ArchiveCodec ZSTD = new ZstdCodec();
+	
+	/**
+	 * Name deflate is stored under for snapshot blobs. Archives called deflate are zip files,
+	 * blobs are a bare deflate stream, so they get a name of their own.
+	 */
+	public static final String RAW_DEFLATE = "raw-deflate";
+	
+	private static final Map<String, ArchiveCodec> codecs = new HashMap<>();
+	
+	static {
+		register(DEFLATE);
+		register(LZ4);
+		register(ZSTD);
+		codecs.put(RAW_DEFLATE, DEFLATE);
+	}
+	
+	private ArchiveCodecs() {}
+	
+	public static void register(ArchiveCodec codec) {
+		codecs.put(codec.getName(), codec);
+	}
+	
+	/**
+	 * @param name the codec name
+	 * @return the codec, or null if there is none with that name
+	 */
+	public static ArchiveCodec get(String name) {
+		return codecs.get(name.toLowerCase());
+	}
+	
+	/**
+	 * @return the name to store in the metadata of a snapshot blob written with the codec
+	 */
+	public static String getBlobName(ArchiveCodec codec) {
+		return codec == DEFLATE ? RAW_DEFLATE : codec.getName();
+	}
+	
+	/**
+	 * Find the codec a GridFS file was written with. Files without one were written
+	 * before codecs existed and are deflate.
+	 * @param metadata the GridFS metadata, may be null
+	 * @throws IllegalArgumentException if the codec is unknown
+	 */
+	public static ArchiveCodec fromMetadata(Document metadata) {
+		if(metadata == null || !metadata.containsKey("codec")) {
+			return DEFLATE;
+		}
+		
+		String name = metadata.getString("codec");
+		ArchiveCodec codec = get(name);
+		
+		if(codec == null) {
+			throw new IllegalArgumentException("Unknown codec "+name);
+		}
+		
+		return codec;
+	}
+	
+}
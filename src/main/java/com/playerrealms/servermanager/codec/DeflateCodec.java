@@ -0,0 +1,65 @@
+package com.playerrealms.servermanager.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public class DeflateCodec implements ArchiveCodec {
+
+	public static final String NAME = "deflate";
+	
+	@Override
+	public String getName() {
+		return NAME;
+	}
+	
+	@Override
+	public int getMinLevel() {
+		return Deflater.BEST_SPEED;
+	}
+	
+	@Override
+	public int getMaxLevel() {
+		return Deflater.BEST_COMPRESSION;
+	}
+	
+	@Override
+	public int getDefaultLevel() {
+		return 6;
+	}
+	
+	@Override
+	public OutputStream compress(OutputStream out, int level) throws IOException {
+		Deflater deflater = new Deflater(level);
+		return new DeflaterOutputStream(out, deflater, 64 * 1024) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				}finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+	
+	@Override
+	public InputStream decompress(InputStream in) throws IOException {
+		Inflater inflater = new Inflater();
+		return new InflaterInputStream(in, inflater, 64 * 1024) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				}finally {
+					inflater.end();
+				}
+			}
+		};
+	}
+	
+}
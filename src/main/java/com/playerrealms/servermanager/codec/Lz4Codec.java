@@ -0,0 +1,54 @@
+package com.playerrealms.servermanager.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+/**
+ * LZ4 block streams. Level 0 uses the fast compressor, 1 to 17 the high compressor.
+ */
+public class Lz4Codec implements ArchiveCodec {
+
+	public static final String NAME = "lz4";
+	
+	private static final int BLOCK_SIZE = 1024 * 1024;
+	
+	private final LZ4Factory factory = LZ4Factory.fastestInstance();
+	
+	@Override
+	public String getName() {
+		return NAME;
+	}
+	
+	@Override
+	public int getMinLevel() {
+		return 0;
+	}
+	
+	@Override
+	public int getMaxLevel() {
+		return 17;
+	}
+	
+	@Override
+	public int getDefaultLevel() {
+		return 0;
+	}
+	
+	@Override
+	public OutputStream compress(OutputStream out, int level) throws IOException {
+		LZ4Compressor compressor = level <= 0 ? factory.fastCompressor() : factory.highCompressor(level);
+		return new LZ4BlockOutputStream(out, BLOCK_SIZE, compressor);
+	}
+	
+	@Override
+	public InputStream decompress(InputStream in) throws IOException {
+		return new LZ4BlockInputStream(in, factory.fastDecompressor());
+	}
+	
+}
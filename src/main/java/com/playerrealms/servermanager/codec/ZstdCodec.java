@@ -0,0 +1,44 @@
+package com.playerrealms.servermanager.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+public class ZstdCodec implements ArchiveCodec {
+
+	public static final String NAME = "zstd";
+	
+	@Override
+	public String getName() {
+		return NAME;
+	}
+	
+	@Override
+	public int getMinLevel() {
+		return 1;
+	}
+	
+	@Override
+	public int getMaxLevel() {
+		return 19;
+	}
+	
+	@Override
+	public int getDefaultLevel() {
+		return 3;
+	}
+	
+	@Override
+	public OutputStream compress(OutputStream out, int level) throws IOException {
+		return new ZstdOutputStream(out, level);
+	}
+	
+	@Override
+	public InputStream decompress(InputStream in) throws IOException {
+		return new ZstdInputStream(in);
+	}
+	
+}
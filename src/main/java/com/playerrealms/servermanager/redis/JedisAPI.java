@@ -1,9 +1,17 @@
 package com.playerrealms.servermanager.redis;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 
 public class JedisAPI {
 
@@ -40,4 +48,65 @@ public class JedisAPI {
 		}
 	}
 	
+	/**
+	 * Write a hash that disappears unless it is written again within the ttl, and add its key to a set
+	 * so readers can find it. Done in one round trip.
+	 */
+	public static void putExpiringHash(String key, Map<String, String> fields, int ttlSeconds, String set) {
+		try(Jedis jedis = pool.getResource()){
+			Pipeline pipe = jedis.pipelined();
+			pipe.hmset(key, fields);
+			pipe.expire(key, ttlSeconds);
+			pipe.sadd(set, key);
+			pipe.sync();
+		}
+	}
+	
+	/**
+	 * Delete a hash and take its key out of the set it was added to
+	 */
+	public static void deleteHash(String key, String set) {
+		try(Jedis jedis = pool.getResource()){
+			Pipeline pipe = jedis.pipelined();
+			pipe.del(key);
+			pipe.srem(set, key);
+			pipe.sync();
+		}
+	}
+	
+	/**
+	 * Read every hash whose key is in the set, in one round trip. Keys of hashes that
+	 * expired are removed from the set.
+	 * @return the hashes by key
+	 */
+	public static Map<String, Map<String, String>> getHashes(String set) {
+		try(Jedis jedis = pool.getResource()){
+			Set<String> keys = jedis.smembers(set);
+			
+			Pipeline pipe = jedis.pipelined();
+			Map<String, Response<Map<String, String>>> responses = new HashMap<>();
+			for(String key : keys) {
+				responses.put(key, pipe.hgetAll(key));
+			}
+			pipe.sync();
+			
+			Map<String, Map<String, String>> hashes = new HashMap<>();
+			List<String> expired = new ArrayList<>();
+			for(Map.Entry<String, Response<Map<String, String>>> entry : responses.entrySet()) {
+				Map<String, String> hash = entry.getValue().get();
+				if(hash == null || hash.isEmpty()) {
+					expired.add(entry.getKey());
+				}else {
+					hashes.put(entry.getKey(), hash);
+				}
+			}
+			
+			if(!expired.isEmpty()) {
+				jedis.srem(set, expired.toArray(new String[expired.size()]));
+			}
+			
+			return hashes;
+		}
+	}
+	
 }
@@ -0,0 +1,90 @@
+package com.playerrealms.servermanager.redis;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Publishes that this manager is alive and how much room it has as a Redis hash that expires
+ * when the heartbeats stop. All managers can be read at once with {@link #readAll()}.
+ * The managers collection in MongoDB only has to be written when {@link #isMongoDue(long, boolean, long)} says so.
+ */
+public class ManagerPresence {
+
+	/**
+	 * Set holding the key of every manager hash
+	 */
+	public static final String MANAGERS_KEY = "managers";
+
+	public static final String KEY_PREFIX = "manager:";
+
+	private final String key;
+
+	private final int ttlSeconds;
+
+	private final long mongoStep, mongoInterval;
+
+	private long mongoFree = -1, mongoTime;
+
+	private boolean mongoAccept;
+
+	/**
+	 * @param ttlSeconds how long the hash lives without a heartbeat
+	 * @param mongoStep how many bytes free memory has to move before MongoDB is written again
+	 * @param mongoInterval write MongoDB at least this often in ms so its time stays fresh
+	 */
+	public ManagerPresence(String ip, int ttlSeconds, long mongoStep, long mongoInterval) {
+		this.key = KEY_PREFIX + ip;
+		this.ttlSeconds = Math.max(1, ttlSeconds);
+		this.mongoStep = mongoStep;
+		this.mongoInterval = mongoInterval;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Write our hash and push its expiry back
+	 * @param fields the load to publish, time is added
+	 */
+	public void heartbeat(Map<String, String> fields) {
+		Map<String, String> hash = new HashMap<>(fields);
+		hash.put("time", String.valueOf(System.currentTimeMillis()));
+		JedisAPI.putExpiringHash(key, hash, ttlSeconds, MANAGERS_KEY);
+	}
+
+	/**
+	 * Remove our hash so we stop being offered servers right away instead of after the ttl
+	 */
+	public void delete() {
+		JedisAPI.deleteHash(key, MANAGERS_KEY);
+	}
+
+	/**
+	 * @return true if free memory or accepting changed enough since the last MongoDB write, or it is getting old
+	 */
+	public synchronized boolean isMongoDue(long free, boolean accept, long now) {
+		if(mongoFree < 0 || accept != mongoAccept) {
+			return true;
+		}
+		return Math.abs(free - mongoFree) >= mongoStep || now - mongoTime >= mongoInterval;
+	}
+
+	/**
+	 * Remember what was last written to MongoDB
+	 */
+	public synchronized void onMongoWritten(long free, boolean accept, long now) {
+		mongoFree = free;
+		mongoAccept = accept;
+		mongoTime = now;
+	}
+
+	/**
+	 * Read the presence of every live manager in one round trip
+	 * @return the hashes by key, see {@link #KEY_PREFIX}
+	 */
+	public static Map<String, Map<String, String>> readAll() {
+		return JedisAPI.getHashes(MANAGERS_KEY);
+	}
+
+}
@@ -1,7 +1,6 @@
 package com.playerrealms.servermanager.redis;
 
 import java.io.IOException;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -20,18 +19,40 @@ import redis.clients.jedis.JedisPubSub;
 
 public class PubSubRunner extends JedisPubSub implements Runnable {
 
+	/**
+	 * Hint that a server is likely to be started soon, <code>PREFETCH_SERVER &lt;reqId&gt; &lt;name&gt;</code>.
+	 * No response is sent.
+	 */
+	public static final String PREFETCH_SERVER = "PREFETCH_SERVER";
+	
+	/**
+	 * A manager publishes <code>&lt;name&gt; &lt;managerId&gt;</code> here right before its <code>&lt;name&gt; UPDATE</code>
+	 * on the update channel, which keeps the format everyone else reads. Redis delivers both in that order.
+	 */
+	public static final String UPDATE_ORIGIN_CHANNEL = RedisConstants.MANAGER_UPDATE_CHANNEL+"_origin";
+
 	private ServerManager manager;
 	
-	private Map<String, Thread> taskContext;
+	/**
+	 * How many UPDATEs of our own are still on their way per lower case server name, only used on the subscriber thread
+	 */
+	private final Map<String, Integer> ownUpdates = new HashMap<>();
 	
 	public PubSubRunner(ServerManager manager) {
 		this.manager = manager;
-		taskContext = Collections.synchronizedMap(new HashMap<>());
 	}
 	
 	@Override
 	public void onMessage(String channel, String message) {
 		try {
+			if(channel.equals(RedisConstants.MANAGER_UPDATE_CHANNEL)) {
+				handleUpdate(message);
+				return;
+			}
+			if(channel.equals(UPDATE_ORIGIN_CHANNEL)) {
+				handleOrigin(message);
+				return;
+			}
 			handleMessage(message);
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -39,22 +60,51 @@ public class PubSubRunner extends JedisPubSub implements Runnable {
 	}
 	
 	private void doAction(String ctx, Runnable run, Runnable fail) {
-		if(taskContext.containsKey(ctx)) {
+		if(!manager.getActions().submit(ctx, run)) {
 			fail.run();
+		}
+	}
+	
+	private void handleUpdate(String message) {
+		String[] cmd = message.split(" ");
+		
+		if(cmd.length >= 2 && cmd[1].equals(RedisConstants.UPDATE)) {
+			//Updates we published ourselves are already in our cache
+			if(skipOwnUpdate(cmd[0])) {
+				return;
+			}
+			manager.onServerUpdated(cmd[0]);
+		}
+	}
+	
+	private void handleOrigin(String message) {
+		String[] cmd = message.split(" ");
+		
+		if(cmd.length >= 2 && cmd[1].equals(manager.getManagerId())) {
+			ownUpdates.merge(cmd[0].toLowerCase(), 1, Integer::sum);
+		}
+	}
+	
+	/**
+	 * If someone else's UPDATE for the server came in between our mark and our UPDATE that one is skipped instead,
+	 * which is fine because ours is handled and reads MongoDB after both were written
+	 * @return true if an UPDATE of ours for the server is on its way
+	 */
+	private boolean skipOwnUpdate(String name) {
+		String key = name.toLowerCase();
+		Integer pending = ownUpdates.get(key);
+		
+		if(pending == null) {
+			return false;
+		}
+		
+		if(pending > 1) {
+			ownUpdates.put(key, pending - 1);
 		}else {
-			Thread t = new Thread(() ->  {
-				try {
-					run.run();
-				}finally {
-					taskContext.remove(ctx);
-				}
-			});
-			t.setDaemon(true);
-			t.start();
-			t.setName(ctx+" Action");
-			taskContext.put(ctx, t);
+			ownUpdates.remove(key);
 		}
 		
+		return true;
 	}
 	
 	private void handleMessage(String message) {
@@ -231,6 +281,17 @@ public class PubSubRunner extends JedisPubSub implements Runnable {
 			
 			
 			
+		}else if(cmd[0].equals(PREFETCH_SERVER)) {
+			if(cmd.length < 3) {
+				manager.getLogger().warning("Ignoring prefetch without a server name: "+message);
+			}else {
+				//Looks the server up in MongoDB, so not on this thread. It is only a hint, nobody waits for an answer
+				doAction(cmd[2], () -> {
+					if(manager.prefetchServer(cmd[2])) {
+						manager.getLogger().info("Prefetching "+cmd[2]);
+					}
+				}, () -> manager.getLogger().info("Too many actions waiting, not prefetching "+cmd[2]));
+			}
 		}else if(cmd[0].equals(RedisConstants.NEW_GLOBAL_FILE)){
 			try {
 				manager.downloadGlobalData();
@@ -252,7 +313,7 @@ public class PubSubRunner extends JedisPubSub implements Runnable {
 	
 	@Override
 	public void run() {
-		JedisAPI.subscribe(this, RedisConstants.MANAGER_REQUEST_CHANNEL+Start.ip, RedisConstants.MANAGER_GLOBAL_CHANNEL);
+		JedisAPI.subscribe(this, RedisConstants.MANAGER_REQUEST_CHANNEL+Start.ip, RedisConstants.MANAGER_GLOBAL_CHANNEL, RedisConstants.MANAGER_UPDATE_CHANNEL, UPDATE_ORIGIN_CHANNEL);
 	}
 	
 	
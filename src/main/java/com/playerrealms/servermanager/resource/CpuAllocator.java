@@ -0,0 +1,207 @@
+package com.playerrealms.servermanager.resource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gives each server a contiguous slice of cores so servers stop competing for every core on the host.
+ * Slices go where the fewest servers already are, so cores are only shared once the host is full.
+ * When a server stops the others are moved into the space it leaves if that lowers their sharing.
+ * A moved slice only reaches the container through {@link #apply(TelemetryCollector)}, the CPUSET
+ * variable a server is started with keeps holding its first slice.
+ */
+public class CpuAllocator {
+
+	private final int first, cores;
+	
+	private final int[] load;
+	
+	private final Map<String, Slice> slices = new LinkedHashMap<>();
+	
+	private final Map<String, String> applied = new HashMap<>();
+	
+	/**
+	 * @param first the first core servers may use, cores before it are left to the manager and the system
+	 * @param cores how many cores the host has
+	 */
+	public CpuAllocator(int first, int cores) {
+		this.first = Math.max(0, Math.min(first, cores - 1));
+		this.cores = cores;
+		this.load = new int[cores];
+	}
+	
+	/**
+	 * Give a server a slice of cores, or return the one it already has
+	 * @param size how many cores the server gets
+	 * @return the slice as a cpuset list, like 4-7. It can move later, see {@link #getSlice(String)}
+	 */
+	public synchronized String allocate(String serverName, int size) {
+		String key = serverName.toLowerCase();
+		
+		Slice slice = slices.get(key);
+		
+		if(slice != null) {
+			return slice.toString();
+		}
+		
+		slice = place(Math.max(1, Math.min(size, cores - first)), -1);
+		slices.put(key, slice);
+		add(slice, 1);
+		
+		return slice.toString();
+	}
+	
+	/**
+	 * Free the slice of a server and move the other servers into the space if it helps them
+	 */
+	public synchronized void release(String serverName) {
+		String key = serverName.toLowerCase();
+		
+		Slice slice = slices.remove(key);
+		
+		applied.remove(key);
+		
+		if(slice == null) {
+			return;
+		}
+		
+		add(slice, -1);
+		
+		rebalance();
+	}
+	
+	/**
+	 * @return the slice of a server as a cpuset list, or null if it has none
+	 */
+	public synchronized String getSlice(String serverName) {
+		Slice slice = slices.get(serverName.toLowerCase());
+		return slice == null ? null : slice.toString();
+	}
+	
+	/**
+	 * @return how many servers use each core
+	 */
+	public synchronized int[] getLoad() {
+		return load.clone();
+	}
+	
+	/**
+	 * Write slices that changed since the server started into its container cgroup
+	 */
+	public void apply(TelemetryCollector telemetry) {
+		Map<String, String> pending = new HashMap<>();
+		
+		synchronized (this) {
+			for(Map.Entry<String, Slice> entry : slices.entrySet()) {
+				String cpus = entry.getValue().toString();
+				if(!cpus.equals(applied.get(entry.getKey()))) {
+					pending.put(entry.getKey(), cpus);
+				}
+			}
+		}
+		
+		for(Map.Entry<String, String> entry : pending.entrySet()) {
+			File cgroup = telemetry.getCgroup(entry.getKey(), "cpuset");
+			
+			if(cgroup == null) {
+				continue;
+			}
+			
+			try(FileOutputStream out = new FileOutputStream(new File(cgroup, "cpuset.cpus"))){
+				out.write(entry.getValue().getBytes(StandardCharsets.US_ASCII));
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+			
+			synchronized (this) {
+				Slice slice = slices.get(entry.getKey());
+				if(slice != null && slice.toString().equals(entry.getValue())) {
+					applied.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+	}
+	
+	private void rebalance() {
+		List<Map.Entry<String, Slice>> entries = new ArrayList<>(slices.entrySet());
+		
+		//Big slices are the hardest to fit, place them first
+		Collections.sort(entries, (a, b) -> Integer.compare(b.getValue().size, a.getValue().size));
+		
+		for(Map.Entry<String, Slice> entry : entries) {
+			Slice current = entry.getValue();
+			
+			add(current, -1);
+			
+			Slice best = place(current.size, current.start);
+			
+			add(best, 1);
+			
+			entry.setValue(best);
+		}
+	}
+	
+	/**
+	 * Find the window of cores with the least sharing
+	 * @param preferred start of the window to keep if nothing is better, -1 for none
+	 */
+	private Slice place(int size, int preferred) {
+		int bestStart = first;
+		long bestScore = Long.MAX_VALUE;
+		
+		for(int start = first; start + size <= cores;start++) {
+			long score = score(start, size);
+			if(score < bestScore || (score == bestScore && start == preferred)) {
+				bestScore = score;
+				bestStart = start;
+			}
+		}
+		
+		return new Slice(bestStart, size);
+	}
+	
+	/**
+	 * Windows are ranked by their busiest core, then by their total sharing
+	 */
+	private long score(int start, int size) {
+		int max = 0;
+		int total = 0;
+		for(int i = start; i < start + size;i++) {
+			max = Math.max(max, load[i]);
+			total += load[i];
+		}
+		return (long) max * cores * cores + total;
+	}
+	
+	private void add(Slice slice, int amount) {
+		for(int i = slice.start; i < slice.start + slice.size;i++) {
+			load[i] += amount;
+		}
+	}
+	
+	private static class Slice {
+		
+		private final int start, size;
+		
+		public Slice(int start, int size) {
+			this.start = start;
+			this.size = size;
+		}
+		
+		@Override
+		public String toString() {
+			return size == 1 ? String.valueOf(start) : start+"-"+(start + size - 1);
+		}
+		
+	}
+	
+}
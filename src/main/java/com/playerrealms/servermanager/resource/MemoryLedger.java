@@ -0,0 +1,143 @@
+package com.playerrealms.servermanager.resource;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Reserves the memory of each server when it starts and releases it when it stops, so
+ * servers that are starting at the same time cannot all be admitted against the same free memory.
+ * A server is admitted when both the reservations and the observed free memory leave room for it.
+ */
+public class MemoryLedger {
+
+	private final Map<String, Reservation> reservations = new HashMap<>();
+	
+	private final LongSupplier physical, available;
+	
+	private final long headroom;
+	
+	private final double overcommit;
+	
+	private final long warmup;
+	
+	/**
+	 * @param physical physical memory in bytes
+	 * @param available observed available memory in bytes
+	 * @param headroom bytes that are always kept free
+	 * @param overcommit how much of physical memory may be reserved, 1 to never reserve more than there is
+	 * @param warmup how long a new server is assumed to still be growing, in ms. Until then its whole reservation is
+	 * taken off the observed free memory
+	 */
+	public MemoryLedger(LongSupplier physical, LongSupplier available, long headroom, double overcommit, long warmup) {
+		this.physical = physical;
+		this.available = available;
+		this.headroom = headroom;
+		this.overcommit = overcommit;
+		this.warmup = warmup;
+	}
+	
+	/**
+	 * Reserve memory for a server if there is room for it
+	 * @param serverName the server
+	 * @param bytes how much memory it may use
+	 * @return true if reserved, false if the server does not fit
+	 */
+	public synchronized boolean reserve(String serverName, long bytes) {
+		String key = serverName.toLowerCase();
+		
+		Reservation old = reservations.get(key);
+		
+		if(old != null && old.bytes >= bytes) {
+			return true;
+		}
+		
+		long extra = old == null ? bytes : bytes - old.bytes;
+		
+		if(getCommitted() + extra > getCommittable()) {
+			return false;
+		}
+		
+		if(getObservedFree() - extra < headroom) {
+			return false;
+		}
+		
+		reservations.put(key, new Reservation(bytes, System.currentTimeMillis()));
+		
+		return true;
+	}
+	
+	/**
+	 * Release the memory of a server that stopped
+	 */
+	public synchronized void release(String serverName) {
+		reservations.remove(serverName.toLowerCase());
+	}
+	
+	/**
+	 * @return bytes reserved by running servers
+	 */
+	public synchronized long getCommitted() {
+		long committed = 0;
+		for(Reservation reservation : reservations.values()) {
+			committed += reservation.bytes;
+		}
+		return committed;
+	}
+	
+	/**
+	 * @return how many bytes may be reserved in total
+	 */
+	public long getCommittable() {
+		return (long) (physical.getAsLong() * overcommit) - headroom;
+	}
+	
+	public long getPhysical() {
+		return physical.getAsLong();
+	}
+	
+	/**
+	 * @return observed available memory minus the reservations of servers that are still warming up
+	 */
+	public synchronized long getObservedFree() {
+		long now = System.currentTimeMillis();
+		long free = available.getAsLong();
+		for(Reservation reservation : reservations.values()) {
+			if(now - reservation.time < warmup) {
+				free -= reservation.bytes;
+			}
+		}
+		return free;
+	}
+	
+	/**
+	 * @return the largest reservation that would be admitted right now
+	 */
+	public synchronized long getFree() {
+		return Math.max(0, Math.min(getCommittable() - getCommitted(), getObservedFree() - headroom));
+	}
+	
+	/**
+	 * @return reserved bytes by lower case server name
+	 */
+	public synchronized Map<String, Long> getReservations() {
+		Map<String, Long> copy = new HashMap<>();
+		for(Map.Entry<String, Reservation> entry : reservations.entrySet()) {
+			copy.put(entry.getKey(), entry.getValue().bytes);
+		}
+		return Collections.unmodifiableMap(copy);
+	}
+	
+	private static class Reservation {
+		
+		private final long bytes, time;
+		
+		public Reservation(long bytes, long time) {
+			this.bytes = bytes;
+			this.time = time;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,197 @@
+package com.playerrealms.servermanager.resource;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Leases ports from a fixed range to servers. Free ports are kept in a ring so a lease and a release
+ * are O(1), and a released port goes to the back of the ring so it is not handed out again straight away.
+ * Ports that are found in use by something else are quarantined for a while before they are tried again.
+ */
+public class PortAllocator {
+
+	private final int low, high;
+	
+	private final long quarantineTime;
+	
+	private final boolean probe;
+	
+	/**
+	 * One bit per port in the range, set while it is leased
+	 */
+	private final long[] leased;
+	
+	private final int[] free;
+	
+	private int freeHead, freeCount;
+	
+	private final int[] quarantined;
+	
+	private final long[] quarantinedUntil;
+	
+	private int quarantineHead, quarantineCount;
+	
+	private final Map<String, Integer> leases = new HashMap<>();
+	
+	/**
+	 * @param low first port of the range
+	 * @param high last port of the range
+	 * @param quarantineTime how long a port that failed to bind is kept out, in ms
+	 * @param probe true to check a port can be bound before leasing it
+	 */
+	public PortAllocator(int low, int high, long quarantineTime, boolean probe) {
+		if(high < low) {
+			throw new IllegalArgumentException("Empty port range "+low+"-"+high);
+		}
+		this.low = low;
+		this.high = high;
+		this.quarantineTime = quarantineTime;
+		this.probe = probe;
+		
+		int size = high - low + 1;
+		
+		leased = new long[(size + 63) / 64];
+		free = new int[size];
+		quarantined = new int[size];
+		quarantinedUntil = new long[size];
+		
+		for(int port = low; port <= high;port++) {
+			free[freeCount++] = port;
+		}
+	}
+	
+	/**
+	 * Lease a port to a server, or return the one it already has
+	 * @throws IllegalStateException if every port is leased or quarantined
+	 */
+	public synchronized int lease(String serverName) {
+		String key = serverName.toLowerCase();
+		
+		Integer existing = leases.get(key);
+		
+		if(existing != null) {
+			return existing;
+		}
+		
+		releaseQuarantine(System.currentTimeMillis());
+		
+		while(freeCount > 0) {
+			int port = free[freeHead];
+			freeHead = (freeHead + 1) % free.length;
+			freeCount--;
+			
+			if(probe && !canBind(port)) {
+				quarantine(port);
+				continue;
+			}
+			
+			setLeased(port, true);
+			leases.put(key, port);
+			
+			return port;
+		}
+		
+		throw new IllegalStateException("No free ports in "+low+"-"+high);
+	}
+	
+	/**
+	 * Give the port of a server back
+	 */
+	public synchronized void release(String serverName) {
+		Integer port = leases.remove(serverName.toLowerCase());
+		
+		if(port != null) {
+			setLeased(port, false);
+			free[(freeHead + freeCount) % free.length] = port;
+			freeCount++;
+		}
+	}
+	
+	/**
+	 * Take the port of a server back and keep it out of use for a while, because the server could not bind it
+	 */
+	public synchronized void releaseFailed(String serverName) {
+		Integer port = leases.remove(serverName.toLowerCase());
+		
+		if(port != null) {
+			setLeased(port, false);
+			quarantine(port);
+		}
+	}
+	
+	/**
+	 * @return the port leased to a server, or -1 if it has none
+	 */
+	public synchronized int getPort(String serverName) {
+		Integer port = leases.get(serverName.toLowerCase());
+		return port == null ? -1 : port;
+	}
+	
+	public synchronized boolean isLeased(int port) {
+		if(port < low || port > high) {
+			return false;
+		}
+		int index = port - low;
+		return (leased[index >> 6] & (1L << index)) != 0;
+	}
+	
+	public int getCapacity() {
+		return high - low + 1;
+	}
+	
+	public synchronized int getLeasedCount() {
+		return leases.size();
+	}
+	
+	public synchronized int getQuarantinedCount() {
+		releaseQuarantine(System.currentTimeMillis());
+		return quarantineCount;
+	}
+	
+	/**
+	 * @return the share of the range that is leased, from 0 to 1
+	 */
+	public synchronized double getUtilisation() {
+		return (double) leases.size() / getCapacity();
+	}
+	
+	private void quarantine(int port) {
+		int tail = (quarantineHead + quarantineCount) % quarantined.length;
+		quarantined[tail] = port;
+		quarantinedUntil[tail] = System.currentTimeMillis() + quarantineTime;
+		quarantineCount++;
+	}
+	
+	/**
+	 * Every port is quarantined for the same time, so the ring is ordered by expiry
+	 */
+	private void releaseQuarantine(long now) {
+		while(quarantineCount > 0 && quarantinedUntil[quarantineHead] <= now) {
+			free[(freeHead + freeCount) % free.length] = quarantined[quarantineHead];
+			freeCount++;
+			quarantineHead = (quarantineHead + 1) % quarantined.length;
+			quarantineCount--;
+		}
+	}
+	
+	private void setLeased(int port, boolean value) {
+		int index = port - low;
+		if(value) {
+			leased[index >> 6] |= 1L << index;
+		}else {
+			leased[index >> 6] &= ~(1L << index);
+		}
+	}
+	
+	private static boolean canBind(int port) {
+		try(ServerSocket socket = new ServerSocket(port)){
+			socket.setReuseAddress(true);
+			return true;
+		}catch(IOException e) {
+			return false;
+		}
+	}
+	
+}
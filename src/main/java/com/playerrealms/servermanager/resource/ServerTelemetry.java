@@ -0,0 +1,132 @@
+package com.playerrealms.servermanager.resource;
+
+import java.util.Arrays;
+
+/**
+ * Ring buffers of the resource usage of one server, one slot per collector interval.
+ * Counters are turned into rates as they are recorded, so every metric is a plain gauge here.
+ */
+public class ServerTelemetry {
+
+	/**
+	 * CPU in thousandths of a core
+	 */
+	public static final int CPU = 0;
+	
+	/**
+	 * Anonymous memory in bytes
+	 */
+	public static final int RSS = 1;
+	
+	/**
+	 * Disk reads and writes in bytes per second
+	 */
+	public static final int DISK = 2;
+	
+	/**
+	 * Network received and sent in bytes per second
+	 */
+	public static final int NET = 3;
+	
+	private static final int METRICS = 4;
+	
+	private final long[] times;
+	
+	private final long[][] values;
+	
+	private final long[] scratch;
+	
+	private int head, count;
+	
+	private long lastTime = -1, lastCpu, lastDisk, lastNet;
+	
+	public ServerTelemetry(int capacity) {
+		times = new long[capacity];
+		values = new long[METRICS][capacity];
+		scratch = new long[capacity];
+	}
+	
+	/**
+	 * Record the counters read from the container
+	 * @param time when they were read, in ms
+	 * @param cpu CPU time used in microseconds
+	 * @param rss memory in bytes
+	 * @param disk bytes read and written
+	 * @param net bytes received and sent
+	 */
+	public synchronized void record(long time, long cpu, long rss, long disk, long net) {
+		long elapsed = time - lastTime;
+		
+		//The first sample and counters that went backwards (container restarted) only set the baseline
+		if(lastTime >= 0 && elapsed > 0 && cpu >= lastCpu && disk >= lastDisk && net >= lastNet) {
+			times[head] = time;
+			values[CPU][head] = (cpu - lastCpu) / elapsed;
+			values[RSS][head] = rss;
+			values[DISK][head] = (disk - lastDisk) * 1000 / elapsed;
+			values[NET][head] = (net - lastNet) * 1000 / elapsed;
+			
+			head = (head + 1) % times.length;
+			if(count < times.length) {
+				count++;
+			}
+		}
+		
+		lastTime = time;
+		lastCpu = cpu;
+		lastDisk = disk;
+		lastNet = net;
+	}
+	
+	/**
+	 * @return the newest value of a metric, or 0 if there is none
+	 */
+	public synchronized long getLatest(int metric) {
+		if(count == 0) {
+			return 0;
+		}
+		return values[metric][(head - 1 + times.length) % times.length];
+	}
+	
+	/**
+	 * @return the mean of a metric over the buffer, or 0 if there are no samples
+	 */
+	public synchronized long getAverage(int metric) {
+		if(count == 0) {
+			return 0;
+		}
+		long total = 0;
+		for(int i = 0; i < count;i++) {
+			total += values[metric][i];
+		}
+		return total / count;
+	}
+	
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the value of a metric at a percentile of the buffer, or 0 if there are no samples
+	 */
+	public synchronized long getPercentile(int metric, double percentile) {
+		if(count == 0) {
+			return 0;
+		}
+		System.arraycopy(values[metric], 0, scratch, 0, count);
+		Arrays.sort(scratch, 0, count);
+		int index = (int) Math.ceil(percentile / 100D * count) - 1;
+		return scratch[Math.max(0, Math.min(count - 1, index))];
+	}
+	
+	/**
+	 * @return how many samples the buffer holds
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+	
+	/**
+	 * @return when the newest sample was taken, or 0 if there is none
+	 */
+	public synchronized long getLastTime() {
+		return count == 0 ? 0 : times[(head - 1 + times.length) % times.length];
+	}
+	
+}
@@ -0,0 +1,292 @@
+package com.playerrealms.servermanager.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.playerrealms.servermanager.tool.StatReader;
+
+/**
+ * Reads the cgroup stats of each server container into a {@link ServerTelemetry} on a fixed interval.
+ * Containers are matched to servers by the servername environment variable of their first process,
+ * found under docker/&lt;id&gt; or system.slice/docker-&lt;id&gt;.scope. Both cgroup v1 and v2 are read.
+ */
+public class TelemetryCollector {
+
+	private static final String[] PARENTS = {"docker", "system.slice"};
+	
+	private static final byte[] SERVER_NAME = "servername=".getBytes(StandardCharsets.UTF_8);
+	
+	private static final byte[] USAGE_USEC = "usage_usec".getBytes();
+	private static final byte[] ANON = "anon ".getBytes();
+	private static final byte[] RBYTES = "rbytes=".getBytes();
+	private static final byte[] WBYTES = "wbytes=".getBytes();
+	private static final byte[] TOTAL_RSS = "total_rss ".getBytes();
+	private static final byte[] TOTAL = "Total ".getBytes();
+	
+	private final File cgroupRoot, procRoot;
+	
+	private final boolean unified;
+	
+	private final int capacity;
+	
+	private final StatReader reader = new StatReader();
+	
+	private final Map<String, ServerTelemetry> telemetry = new ConcurrentHashMap<>();
+	
+	private final Map<String, Container> containers = new HashMap<>();
+	
+	private ScheduledFuture<?> task;
+	
+	/**
+	 * @param cgroupRoot usually /sys/fs/cgroup
+	 * @param procRoot usually /proc
+	 * @param capacity how many samples each server keeps
+	 */
+	public TelemetryCollector(File cgroupRoot, File procRoot, int capacity) {
+		this.cgroupRoot = cgroupRoot;
+		this.procRoot = procRoot;
+		this.capacity = capacity;
+		unified = new File(cgroupRoot, "cgroup.controllers").exists();
+	}
+	
+	/**
+	 * Collect on a scheduler until {@link #stop()} is called
+	 * @param running names of the servers to collect for
+	 * @param interval time between samples in ms
+	 */
+	public synchronized void start(ScheduledExecutorService scheduler, Supplier<Collection<String>> running, long interval) {
+		stop();
+		task = scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				collect(running.get());
+			}catch(Exception e) {
+				e.printStackTrace();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	public synchronized void stop() {
+		if(task != null) {
+			task.cancel(false);
+			task = null;
+		}
+	}
+	
+	/**
+	 * Take one sample of every running server, forgetting servers that are not running anymore
+	 */
+	public synchronized void collect(Collection<String> running) {
+		Set<String> keys = new HashSet<>();
+		for(String name : running) {
+			keys.add(name.toLowerCase());
+		}
+		
+		telemetry.keySet().retainAll(keys);
+		containers.keySet().retainAll(keys);
+		
+		if(!containers.keySet().containsAll(keys)) {
+			discover();
+		}
+		
+		long now = System.currentTimeMillis();
+		
+		Iterator<Map.Entry<String, Container>> it = containers.entrySet().iterator();
+		
+		while(it.hasNext()) {
+			Map.Entry<String, Container> entry = it.next();
+			
+			try {
+				sample(entry.getKey(), entry.getValue(), now);
+			} catch (IOException e) {
+				//Container went away, it is found again on the next discovery if it comes back
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * @return the telemetry of a server, or null if it is not collected
+	 */
+	public ServerTelemetry getTelemetry(String serverName) {
+		return telemetry.get(serverName.toLowerCase());
+	}
+	
+	/**
+	 * @param controller the cgroup v1 controller, ignored on cgroup v2
+	 * @return the cgroup folder of a server container, or null if it has not been found
+	 */
+	public synchronized File getCgroup(String serverName, String controller) {
+		Container container = containers.get(serverName.toLowerCase());
+		
+		if(container == null) {
+			return null;
+		}
+		
+		return unified ? new File(cgroupRoot, container.path) : new File(cgroupRoot, controller+"/"+container.path);
+	}
+	
+	private void sample(String key, Container container, long now) throws IOException {
+		long cpu, rss, disk;
+		
+		if(unified) {
+			File dir = new File(cgroupRoot, container.path);
+			
+			reader.read(new File(dir, "cpu.stat"));
+			cpu = reader.find(USAGE_USEC);
+			
+			reader.read(new File(dir, "memory.stat"));
+			rss = reader.find(ANON);
+			
+			reader.read(new File(dir, "io.stat"));
+			disk = reader.sum(RBYTES) + reader.sum(WBYTES);
+		}else {
+			reader.read(new File(cgroupRoot, "cpuacct/"+container.path+"/cpuacct.usage"));
+			cpu = reader.parseNumber() / 1000;
+			
+			reader.read(new File(cgroupRoot, "memory/"+container.path+"/memory.stat"));
+			rss = reader.find(TOTAL_RSS);
+			
+			reader.read(new File(cgroupRoot, "blkio/"+container.path+"/blkio.throttle.io_service_bytes"));
+			disk = reader.find(TOTAL);
+		}
+		
+		long net = readNetwork(container.pid);
+		
+		ServerTelemetry server = telemetry.get(key);
+		
+		if(server == null) {
+			server = new ServerTelemetry(capacity);
+			telemetry.put(key, server);
+		}
+		
+		server.record(now, Math.max(0, cpu), Math.max(0, rss), Math.max(0, disk), net);
+	}
+	
+	/**
+	 * @return bytes received and sent on every interface but loopback in the network namespace of a process
+	 */
+	private long readNetwork(long pid) throws IOException {
+		reader.read(new File(procRoot, pid+"/net/dev"));
+		
+		long total = 0;
+		
+		//Two header lines
+		int line = reader.nextLine(reader.nextLine(0));
+		
+		while(line < reader.length()) {
+			int colon = reader.indexOf(line, (byte) ':');
+			
+			if(colon > 0 && !isLoopback(line, colon)) {
+				int offset = reader.nextNumber(colon);
+				long received = reader.parseNumber(offset);
+				//Sent bytes is the ninth column
+				for(int i = 0; i < 8;i++) {
+					offset = reader.nextNumber(offset);
+				}
+				long sent = reader.parseNumber(offset);
+				total += Math.max(0, received) + Math.max(0, sent);
+			}
+			
+			line = reader.nextLine(line);
+		}
+		
+		return total;
+	}
+	
+	private boolean isLoopback(int line, int colon) {
+		return colon - 2 >= line && reader.get(colon - 1) == 'o' && reader.get(colon - 2) == 'l' && (colon - 3 < line || reader.get(colon - 3) == ' ');
+	}
+	
+	private void discover() {
+		File base = unified ? cgroupRoot : new File(cgroupRoot, "memory");
+		
+		Set<String> known = new HashSet<>();
+		for(Container container : containers.values()) {
+			known.add(container.path);
+		}
+		
+		for(String parent : PARENTS) {
+			File[] dirs = new File(base, parent).listFiles(f -> f.isDirectory() && (parent.equals("docker") || f.getName().startsWith("docker-")));
+			
+			if(dirs == null) {
+				continue;
+			}
+			
+			for(File dir : dirs) {
+				String path = parent+"/"+dir.getName();
+				
+				if(known.contains(path)) {
+					continue;
+				}
+				
+				try {
+					reader.read(new File(dir, "cgroup.procs"));
+					long pid = reader.parseNumber();
+					
+					if(pid <= 0) {
+						continue;
+					}
+					
+					String name = readServerName(pid);
+					
+					if(name != null) {
+						containers.put(name.toLowerCase(), new Container(path, pid));
+					}
+				} catch (IOException e) {
+					//Container stopped while we looked at it
+				}
+			}
+		}
+	}
+	
+	private String readServerName(long pid) throws IOException {
+		reader.read(new File(procRoot, pid+"/environ"));
+		
+		int start = 0;
+		
+		while(start < reader.length()) {
+			int end = start;
+			while(end < reader.length() && reader.get(end) != 0) {
+				end++;
+			}
+			
+			if(reader.startsWith(start, SERVER_NAME)) {
+				byte[] name = new byte[end - start - SERVER_NAME.length];
+				for(int i = 0; i < name.length;i++) {
+					name[i] = reader.get(start + SERVER_NAME.length + i);
+				}
+				return new String(name, StandardCharsets.UTF_8);
+			}
+			
+			start = end + 1;
+		}
+		
+		return null;
+	}
+	
+	private static class Container {
+		
+		private final String path;
+		
+		private final long pid;
+		
+		public Container(String path, long pid) {
+			this.path = path;
+			this.pid = pid;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,87 @@
+package com.playerrealms.servermanager.snapshot;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.playerrealms.servermanager.Server;
+import com.playerrealms.servermanager.ServerManager;
+
+/**
+ * Periodically snapshots running servers so that the upload when they stop only
+ * has to send what changed since the last checkpoint, and so a crash loses at
+ * most one interval of progress. When the upload queue has no room left the
+ * next run carries on after the last server that was checkpointed.
+ */
+public class CheckpointScheduler implements Runnable {
+
+	private final ServerManager manager;
+	
+	private final Logger logger;
+	
+	private final long interval;
+	
+	private ScheduledFuture<?> task;
+	
+	/**
+	 * Lower case name of the last server checkpointed, only touched by the scheduler thread
+	 */
+	private String cursor = "";
+	
+	/**
+	 * @param manager
+	 * @param interval minutes between checkpoints of a server
+	 */
+	public CheckpointScheduler(ServerManager manager, long interval) {
+		this.manager = manager;
+		this.logger = manager.getLogger();
+		this.interval = interval;
+	}
+	
+	public void start() {
+		if(interval <= 0 || task != null) {
+			return;
+		}
+		task = manager.getScheduler().scheduleWithFixedDelay(this, interval, interval, TimeUnit.MINUTES);
+		logger.info("Checkpointing running servers every "+interval+" minutes");
+	}
+	
+	public void stop() {
+		if(task != null) {
+			task.cancel(false);
+			task = null;
+		}
+	}
+	
+	@Override
+	public void run() {
+		UploadPipeline uploads = manager.getUploadPipeline();
+		
+		List<Server> servers = manager.getServers();
+		servers.sort(Comparator.comparing(server -> server.getName().toLowerCase()));
+		
+		int start = 0;
+		while(start < servers.size() && servers.get(start).getName().toLowerCase().compareTo(cursor) <= 0) {
+			start++;
+		}
+		
+		for(int i = 0; i < servers.size(); i++) {
+			Server server = servers.get((start + i) % servers.size());
+			
+			if(!server.isRunning() || uploads.isPending(server.getName())) {
+				continue;
+			}
+			
+			//Checkpoints are optional, leave the rest of the queue to stop uploads
+			if(uploads.getQueueDepth() >= uploads.getThreads() || uploads.offerCheckpoint(server.getName(), server::checkpoint) == null) {
+				logger.info("Upload queue is busy, continuing checkpoints at "+server.getName()+" next time");
+				return;
+			}
+			
+			cursor = server.getName().toLowerCase();
+		}
+	}
+	
+}
@@ -0,0 +1,241 @@
+package com.playerrealms.servermanager.snapshot;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the folders of stopped servers on local disk so a server started again on
+ * this node does not have to download its snapshot. Each folder is stored with the
+ * id of the snapshot it was uploaded as, and the least recently used folders are
+ * deleted once the cache grows past its disk budget.
+ */
+public class FolderCache {
+
+	/**
+	 * File next to each folder holding its snapshot id
+	 */
+	private static final String ID_SUFFIX = ".snapshot";
+	
+	/**
+	 * Held a version number before snapshots had ids, folders that only have one of these are dropped
+	 */
+	private static final String OLD_SUFFIX = ".version";
+	
+	private final File root;
+	
+	private final long budget;
+	
+	private final Logger logger;
+	
+	private final LinkedHashMap<String, CachedFolder> entries;
+	
+	private long totalSize;
+	
+	/**
+	 * @param root directory the folders are kept in, should be on the same disk as the server folders
+	 * @param budget maximum size of the cache in bytes, 0 disables it
+	 * @param logger
+	 */
+	public FolderCache(File root, long budget, Logger logger) {
+		this.root = root;
+		this.budget = budget;
+		this.logger = logger;
+		this.entries = new LinkedHashMap<>(16, 0.75F, true);
+		load();
+	}
+	
+	private void load() {
+		if(!root.exists()) {
+			root.mkdirs();
+			return;
+		}
+		
+		File[] old = root.listFiles(f -> f.isFile() && f.getName().endsWith(OLD_SUFFIX));
+		
+		if(old != null) {
+			for(File file : old) {
+				file.delete();
+			}
+		}
+		
+		File[] folders = root.listFiles(File::isDirectory);
+		
+		if(folders == null) {
+			return;
+		}
+		
+		Arrays.sort(folders, Comparator.comparingLong(f -> getIdFile(f.getName()).lastModified()));
+		
+		for(File folder : folders) {
+			File idFile = getIdFile(folder.getName());
+			try {
+				String id = new String(Files.readAllBytes(idFile.toPath()), StandardCharsets.UTF_8).trim();
+				if(id.isEmpty()) {
+					throw new IOException("Empty snapshot id");
+				}
+				long size = FileUtils.sizeOfDirectory(folder);
+				entries.put(folder.getName(), new CachedFolder(id, size));
+				totalSize += size;
+			}catch(IOException e) {
+				logger.warning("Dropping cached folder without a snapshot id "+folder.getName());
+				discard(folder.getName());
+			}
+		}
+		
+		evict();
+		
+		logger.info("Loaded "+entries.size()+" cached server folders ("+totalSize+" bytes)");
+	}
+	
+	private File getFolder(String key) {
+		return new File(root, key);
+	}
+	
+	private File getIdFile(String key) {
+		return new File(root, key+ID_SUFFIX);
+	}
+	
+	/**
+	 * Move a server folder into the cache
+	 * @param serverName the server name
+	 * @param folder the folder of the server, moved away if this returns true
+	 * @param id the id of the snapshot the folder was uploaded as
+	 * @return true if the folder was cached, false if the caller still has to delete it
+	 */
+	public synchronized boolean store(String serverName, File folder, String id) {
+		if(budget <= 0) {
+			return false;
+		}
+		
+		String key = serverName.toLowerCase();
+		
+		remove(key);
+		
+		long size = FileUtils.sizeOfDirectory(folder);
+		
+		if(size > budget) {
+			return false;
+		}
+		
+		File target = getFolder(key);
+		
+		if(!folder.renameTo(target)) {
+			logger.warning("Could not move "+folder.getPath()+" into the folder cache");
+			return false;
+		}
+		
+		try {
+			Files.write(getIdFile(key).toPath(), id.getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			e.printStackTrace();
+			discard(key);
+			return false;
+		}
+		
+		entries.put(key, new CachedFolder(id, size));
+		totalSize += size;
+		
+		evict();
+		
+		return true;
+	}
+	
+	/**
+	 * Move a cached folder back out of the cache
+	 * @param serverName the server name
+	 * @param target where to move it, must not exist yet
+	 * @return the snapshot id of the folder, or null if nothing was cached
+	 */
+	public synchronized String take(String serverName, File target) {
+		String key = serverName.toLowerCase();
+		
+		CachedFolder entry = entries.remove(key);
+		
+		if(entry == null) {
+			return null;
+		}
+		
+		totalSize -= entry.size;
+		
+		File parent = target.getParentFile();
+		if(parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+		
+		if(target.exists() || !getFolder(key).renameTo(target)) {
+			discard(key);
+			return null;
+		}
+		
+		getIdFile(key).delete();
+		
+		return entry.id;
+	}
+	
+	/**
+	 * Drop the cached folder of a server, if any
+	 */
+	public synchronized void remove(String serverName) {
+		String key = serverName.toLowerCase();
+		
+		CachedFolder entry = entries.remove(key);
+		
+		if(entry != null) {
+			totalSize -= entry.size;
+			discard(key);
+		}
+	}
+	
+	public synchronized long getTotalSize() {
+		return totalSize;
+	}
+	
+	public synchronized int getCount() {
+		return entries.size();
+	}
+	
+	private void evict() {
+		Iterator<Map.Entry<String, CachedFolder>> it = entries.entrySet().iterator();
+		
+		while(totalSize > budget && it.hasNext()) {
+			Map.Entry<String, CachedFolder> eldest = it.next();
+			it.remove();
+			totalSize -= eldest.getValue().size;
+			discard(eldest.getKey());
+			logger.info("Evicted "+eldest.getKey()+" from the folder cache");
+		}
+	}
+	
+	private void discard(String key) {
+		try {
+			FileUtils.deleteDirectory(getFolder(key));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		getIdFile(key).delete();
+	}
+	
+	private static class CachedFolder {
+		
+		private final String id;
+		
+		private final long size;
+		
+		public CachedFolder(String id, long size) {
+			this.id = id;
+			this.size = size;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,144 @@
+package com.playerrealms.servermanager.snapshot;
+
+import com.mongodb.WriteConcern;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Keeps manifests in the server_snapshots collection and blobs in the server_blobs GridFS bucket,
+ * named by their hash.
+ */
+public class MongoSnapshotBackend implements SnapshotBackend {
+
+	private final MongoDatabase database;
+	
+	public MongoSnapshotBackend(MongoDatabase database) {
+		this.database = database;
+	}
+	
+	private MongoCollection<Document> getManifests() {
+		return database.getCollection("server_snapshots");
+	}
+	
+	private GridFSBucket getBlobs() {
+		return GridFSBuckets.create(database, "server_blobs");
+	}
+	
+	private static FindIterable<Document> project(FindIterable<Document> find, String... fields) {
+		return fields.length == 0 ? find : find.projection(Projections.include(fields));
+	}
+	
+	@Override
+	public Document findManifest(String serverName, String... fields) {
+		return project(getManifests().find(Filters.eq("server_name_lower", serverName.toLowerCase())), fields).first();
+	}
+	
+	@Override
+	public Iterable<Document> findManifests(String... fields) {
+		return project(getManifests().find(), fields);
+	}
+	
+	@Override
+	public void saveManifest(String serverName, Document manifest) {
+		//Journaled so the manifest, and every blob written before it, survive a crash once this returns
+		getManifests().withWriteConcern(WriteConcern.JOURNALED).replaceOne(Filters.eq("server_name_lower", serverName.toLowerCase()), manifest, new UpdateOptions().upsert(true));
+	}
+	
+	@Override
+	public void renameManifest(String serverName, String target) {
+		getManifests().updateOne(Filters.eq("server_name_lower", serverName.toLowerCase()), 
+				new Document("$set", new Document("server_name", target).append("server_name_lower", target.toLowerCase())));
+	}
+	
+	@Override
+	public void deleteManifest(String serverName) {
+		getManifests().deleteOne(Filters.eq("server_name_lower", serverName.toLowerCase()));
+	}
+	
+	@Override
+	public boolean touchBlob(String hash) {
+		return database.getCollection("server_blobs.files").updateMany(Filters.eq("filename", hash), 
+				new Document("$set", new Document("uploadDate", new Date()))).getMatchedCount() > 0;
+	}
+	
+	@Override
+	public void storeBlob(String hash, byte[] data, Document metadata) {
+		getBlobs().uploadFromStream(hash, new ByteArrayInputStream(data), new GridFSUploadOptions().metadata(metadata));
+	}
+	
+	/**
+	 * Fetch blobs in one query for their files and one for their GridFS chunks
+	 */
+	@Override
+	public Map<String, Blob> fetchBlobs(Collection<String> hashes) throws IOException {
+		Map<ObjectId, Document> files = new HashMap<>();
+		
+		for(Document file : database.getCollection("server_blobs.files").find(Filters.in("filename", hashes))) {
+			//An upload that raced another may have stored the same blob twice, either will do
+			files.putIfAbsent(file.getObjectId("_id"), file);
+		}
+		
+		Map<ObjectId, ByteArrayOutputStream> data = new HashMap<>();
+		
+		for(Document chunk : database.getCollection("server_blobs.chunks").find(Filters.in("files_id", files.keySet()))
+				.sort(Sorts.ascending("files_id", "n"))) {
+			byte[] bytes = chunk.get("data", Binary.class).getData();
+			data.computeIfAbsent(chunk.getObjectId("files_id"), id -> new ByteArrayOutputStream()).write(bytes, 0, bytes.length);
+		}
+		
+		Map<String, Blob> blobs = new HashMap<>();
+		
+		for(Document file : files.values()) {
+			String hash = file.getString("filename");
+			
+			if(blobs.containsKey(hash)) {
+				continue;
+			}
+			
+			ByteArrayOutputStream stored = data.get(file.getObjectId("_id"));
+			byte[] compressed = stored == null ? new byte[0] : stored.toByteArray();
+			
+			if(compressed.length != ((Number) file.get("length")).longValue()) {
+				throw new IOException("Blob "+hash+" is missing chunks");
+			}
+			
+			blobs.put(hash, new Blob(compressed, file.get("metadata", Document.class)));
+		}
+		
+		return blobs;
+	}
+	
+	@Override
+	public int deleteBlobs(Set<String> referenced, long before) {
+		GridFSBucket blobs = getBlobs();
+		
+		int deleted = 0;
+		
+		for(GridFSFile blob : blobs.find(Filters.lt("uploadDate", new Date(before)))) {
+			if(!referenced.contains(blob.getFilename())) {
+				blobs.delete(blob.getObjectId());
+				deleted++;
+			}
+		}
+		
+		return deleted;
+	}
+	
+}
@@ -0,0 +1,81 @@
+package com.playerrealms.servermanager.snapshot;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+
+/**
+ * Where a {@link SnapshotStore} keeps its manifests and blobs. Manifests are looked up by
+ * server name ignoring case, blobs by the SHA-256 of their decompressed content.
+ */
+public interface SnapshotBackend {
+
+	/**
+	 * @param fields the fields to load, all of them if none are given
+	 * @return the manifest of a server, or null if it has none
+	 */
+	Document findManifest(String serverName, String... fields);
+	
+	/**
+	 * @param fields the fields to load, all of them if none are given
+	 */
+	Iterable<Document> findManifests(String... fields);
+	
+	/**
+	 * Replace the manifest of a server, it must be durable once this returns
+	 */
+	void saveManifest(String serverName, Document manifest);
+	
+	void renameManifest(String serverName, String target);
+	
+	void deleteManifest(String serverName);
+	
+	/**
+	 * Check if a blob is stored and reset its upload date if it is
+	 * @return true if the blob exists
+	 */
+	boolean touchBlob(String hash);
+	
+	/**
+	 * @param data the compressed content
+	 * @param metadata the codec and decompressed size
+	 */
+	void storeBlob(String hash, byte[] data, Document metadata);
+	
+	/**
+	 * @return the blobs that were found, still compressed
+	 * @throws IOException if a blob is stored incompletely
+	 */
+	Map<String, Blob> fetchBlobs(Collection<String> hashes) throws IOException;
+	
+	/**
+	 * Delete every blob not in referenced that was last uploaded or touched before a time
+	 * @return the number of blobs deleted
+	 */
+	int deleteBlobs(Set<String> referenced, long before);
+	
+	class Blob {
+		
+		private final byte[] data;
+		
+		private final Document metadata;
+		
+		public Blob(byte[] data, Document metadata) {
+			this.data = data;
+			this.metadata = metadata;
+		}
+		
+		public byte[] getData() {
+			return data;
+		}
+		
+		public Document getMetadata() {
+			return metadata;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,159 @@
+package com.playerrealms.servermanager.snapshot;
+
+import com.playerrealms.servermanager.tool.PathFilter;
+import com.playerrealms.servermanager.yaml.Configuration;
+import com.playerrealms.servermanager.yaml.ConfigurationProvider;
+import com.playerrealms.servermanager.yaml.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Glob rules for what is left out of a servers snapshot.
+ * <p>
+ * Rules are read from snapshot.yml next to the manager and from
+ * servertypes/&lt;type&gt;.snapshot.yml, both with an exclude and an include list.
+ * A path is left out if it, or a folder it is in, matches an exclude rule
+ * and the path itself matches no include rule.
+ * Without a snapshot.yml the {@link #DEFAULT_EXCLUDES} are used. Note that
+ * ** only matches across at least one folder, so top level files need their own rule.
+ * Excluded folders are only walked when an include rule could match something in them.
+ */
+public class SnapshotFilter implements PathFilter {
+
+	public static final List<String> DEFAULT_EXCLUDES = Arrays.asList(
+			"logs", "crash-reports", "debug", "usercache.json", "cache", "**/cache", "*.tmp", "**/*.tmp", "*.lck", "**/*.lck");
+	
+	private final List<PathMatcher> excludes;
+	
+	private final List<PathMatcher> includes;
+	
+	/**
+	 * The include rules split into one matcher per folder level, null for a rule that can match at any depth
+	 */
+	private final List<PathMatcher[]> includeLevels;
+	
+	public SnapshotFilter(List<String> excludes, List<String> includes) {
+		this.excludes = compile(excludes);
+		this.includes = compile(includes);
+		this.includeLevels = new ArrayList<>(includes.size());
+		for(String glob : includes) {
+			includeLevels.add(glob.contains("**") || glob.contains("{") ? null : compile(Arrays.asList(glob.split("/"))).toArray(new PathMatcher[0]));
+		}
+	}
+	
+	/**
+	 * Load the rules for a server type
+	 * @param type the server type, or null for just the global rules
+	 */
+	public static SnapshotFilter load(String type, Logger logger) {
+		List<String> excludes = new ArrayList<>();
+		List<String> includes = new ArrayList<>();
+		
+		File global = new File("snapshot.yml");
+		
+		if(global.exists()) {
+			read(global, excludes, includes, logger);
+		}else {
+			excludes.addAll(DEFAULT_EXCLUDES);
+		}
+		
+		if(type != null) {
+			File typeRules = new File("servertypes/"+type+".snapshot.yml");
+			if(typeRules.exists()) {
+				read(typeRules, excludes, includes, logger);
+			}
+		}
+		
+		return new SnapshotFilter(excludes, includes);
+	}
+	
+	private static void read(File file, List<String> excludes, List<String> includes, Logger logger) {
+		try {
+			Configuration rules = ConfigurationProvider.getProvider(YamlConfiguration.class).load(file);
+			excludes.addAll(rules.getStringList("exclude"));
+			includes.addAll(rules.getStringList("include"));
+		} catch (IOException e) {
+			logger.warning("Could not read snapshot rules "+file.getPath());
+			e.printStackTrace();
+		}
+	}
+	
+	private static List<PathMatcher> compile(List<String> globs) {
+		List<PathMatcher> matchers = new ArrayList<>(globs.size());
+		for(String glob : globs) {
+			matchers.add(FileSystems.getDefault().getPathMatcher("glob:"+glob));
+		}
+		return matchers;
+	}
+	
+	private static boolean matches(List<PathMatcher> matchers, String path) {
+		if(matchers.isEmpty()) {
+			return false;
+		}
+		java.nio.file.Path p = Paths.get(path);
+		for(PathMatcher matcher : matchers) {
+			if(matcher.matches(p)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return true if the path or one of the folders it is in matches an exclude rule
+	 */
+	private boolean isExcluded(String path) {
+		int end = -1;
+		do {
+			end = path.indexOf('/', end + 1);
+			if(matches(excludes, end == -1 ? path : path.substring(0, end))) {
+				return true;
+			}
+		}while(end != -1);
+		return false;
+	}
+	
+	/**
+	 * @return true if an include rule could match a path inside the folder
+	 */
+	private boolean isIncludedUnder(String dir) {
+		String[] names = dir.split("/");
+		
+		for(PathMatcher[] levels : includeLevels) {
+			if(levels == null) {
+				return true;
+			}
+			if(levels.length <= names.length) {
+				continue;
+			}
+			boolean under = true;
+			for(int i = 0; i < names.length && under;i++) {
+				under = levels[i].matches(Paths.get(names[i]));
+			}
+			if(under) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	@Override
+	public boolean accept(String path, File file) {
+		return !isExcluded(path) || matches(includes, path);
+	}
+	
+	@Override
+	public boolean descend(String path, File dir) {
+		return accept(path, dir) || isIncludedUnder(path);
+	}
+	
+}
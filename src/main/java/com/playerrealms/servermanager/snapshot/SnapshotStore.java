@@ -0,0 +1,553 @@
+package com.playerrealms.servermanager.snapshot;
+
+import com.mongodb.client.MongoDatabase;
+import com.playerrealms.servermanager.codec.AdaptiveLevel;
+import com.playerrealms.servermanager.codec.ArchiveCodec;
+import com.playerrealms.servermanager.codec.ArchiveCodecs;
+import com.playerrealms.servermanager.tool.ArchiveUtils;
+import com.playerrealms.servermanager.tool.PathFilter;
+import com.playerrealms.servermanager.snapshot.SnapshotBackend.Blob;
+import org.apache.commons.codec.binary.Hex;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Logger;
+
+/**
+ * Stores server folders as a manifest plus content addressed blobs.
+ * <p>
+ * Every file is split into fixed size chunks which are stored once in the
+ * {@link SnapshotBackend} under the SHA-256 of their content, compressed with
+ * the codec named in the blobs metadata. The manifest lists each file with the
+ * hashes of its chunks, so an upload only has to send chunks that no snapshot
+ * has stored before.
+ * <p>
+ * Every manifest gets a new snapshot id, local copies of a snapshot are matched by
+ * that id rather than the version, which starts over when a server is recreated.
+ * <p>
+ * Restores fetch blobs {@link #FETCH_BATCH} at a time and check every chunk
+ * against its hash before it is written.
+ */
+public class SnapshotStore {
+
+	public static final int CHUNK_SIZE = 1024 * 1024;
+	
+	/**
+	 * How many blobs a restore fetches per query, each is at most {@link #CHUNK_SIZE} once decompressed
+	 */
+	public static final int FETCH_BATCH = 16;
+	
+	private final SnapshotBackend backend;
+	
+	private final Logger logger;
+	
+	private final ForkJoinPool pool;
+	
+	private final AdaptiveLevel compression;
+	
+	/**
+	 * @param database
+	 * @param logger
+	 * @param pool pool new blobs are compressed on
+	 * @param compression codec and level for new blobs
+	 */
+	public SnapshotStore(MongoDatabase database, Logger logger, ForkJoinPool pool, AdaptiveLevel compression) {
+		this(new MongoSnapshotBackend(database), logger, pool, compression);
+	}
+	
+	/**
+	 * @param backend where manifests and blobs are kept
+	 * @param logger
+	 * @param pool pool new blobs are compressed on
+	 * @param compression codec and level for new blobs
+	 */
+	public SnapshotStore(SnapshotBackend backend, Logger logger, ForkJoinPool pool, AdaptiveLevel compression) {
+		this.backend = backend;
+		this.logger = logger;
+		this.pool = pool;
+		this.compression = compression;
+	}
+	
+	public Document getManifest(String serverName) {
+		return backend.findManifest(serverName);
+	}
+	
+	/**
+	 * @return the id of the latest snapshot, or null if there is none
+	 */
+	public String getSnapshotId(String serverName) {
+		Document manifest = backend.findManifest(serverName, "snapshot_id");
+		
+		return manifest == null ? null : manifest.getString("snapshot_id");
+	}
+	
+	public String upload(String serverName, File folder) throws IOException {
+		return upload(serverName, folder, PathFilter.ALL, null);
+	}
+	
+	/**
+	 * Upload a folder as the new snapshot of a server
+	 * @param serverName the server name
+	 * @param folder the folder to upload
+	 * @param filter decides which files are part of the snapshot
+	 * @param progress where to report progress to, may be null
+	 * @return the id of the new snapshot
+	 * @throws IOException
+	 */
+	public String upload(String serverName, File folder, PathFilter filter, UploadProgress progress) throws IOException {
+		if(progress != null) {
+			progress.setTotalBytes(org.apache.commons.io.FileUtils.sizeOfDirectory(folder));
+		}
+		
+		Document previous = getManifest(serverName);
+		
+		Set<String> known = new HashSet<>();
+		Map<String, Document> previousFiles = new HashMap<>();
+		long version = 1;
+		
+		if(previous != null) {
+			version = previous.getLong("version") + 1;
+			for(Document file : getFiles(previous)) {
+				known.addAll(getChunks(file));
+				previousFiles.put(file.getString("path"), file);
+			}
+		}
+		
+		List<String> dirs = new ArrayList<>();
+		List<Document> files = new ArrayList<>();
+		
+		UploadStats stats = new UploadStats();
+		stats.previousFiles = previousFiles;
+		stats.progress = progress;
+		stats.filter = filter;
+		stats.codec = compression.getCodec();
+		stats.level = compression.getLevel();
+		
+		Deque<PendingBlob> pending = new ArrayDeque<>();
+		
+		walk(folder, "", dirs, files, known, stats, pending, new byte[CHUNK_SIZE]);
+		
+		storePending(pending, 0);
+		
+		String id = new ObjectId().toHexString();
+		
+		Document manifest = new Document()
+				.append("snapshot_id", id)
+				.append("server_name", serverName)
+				.append("server_name_lower", serverName.toLowerCase())
+				.append("version", version)
+				.append("time", System.currentTimeMillis())
+				.append("dirs", dirs)
+				.append("files", files);
+		
+		backend.saveManifest(serverName, manifest);
+		
+		logger.info("Snapshot "+version+" of "+serverName+": "+files.size()+" files ("+stats.unchanged+" unchanged), "+stats.chunks+" chunks, "
+				+stats.uploaded+" uploaded ("+stats.uploadedBytes+" bytes)");
+		
+		return id;
+	}
+	
+	private void walk(File folder, String path, List<String> dirs, List<Document> files, Set<String> known, UploadStats stats, Deque<PendingBlob> pending, byte[] buffer) throws IOException {
+		File[] children = folder.listFiles();
+		
+		if(children == null) {
+			return;
+		}
+		
+		for(File child : children) {
+			String childPath = path.isEmpty() ? child.getName() : path+"/"+child.getName();
+			
+			boolean accepted = stats.filter.accept(childPath, child);
+			
+			if(child.isDirectory()) {
+				if(accepted) {
+					dirs.add(childPath);
+				}
+				if(accepted || stats.filter.descend(childPath, child)) {
+					walk(child, childPath, dirs, files, known, stats, pending, buffer);
+				}
+				continue;
+			}
+			
+			if(!accepted) {
+				continue;
+			}
+			
+			long size = child.length();
+			long mtime = child.lastModified();
+			
+			Document unchanged = stats.previousFiles.get(childPath);
+			
+			if(unchanged != null && unchanged.getLong("size") == size && unchanged.getLong("mtime") == mtime) {
+				//Same size and modification time as in the last snapshot, don't read it again
+				files.add(unchanged);
+				stats.chunks += getChunks(unchanged).size();
+				stats.unchanged++;
+				if(stats.progress != null) {
+					stats.progress.addProcessedBytes(size);
+				}
+				continue;
+			}
+			
+			List<String> chunks = new ArrayList<>();
+			
+			try(InputStream in = new FileInputStream(child)){
+				int read;
+				while((read = readChunk(in, buffer)) > 0) {
+					String hash = hash(buffer, read);
+					
+					//Touch so collectGarbage does not delete it before the manifest referencing it is written
+					if(known.add(hash) && !backend.touchBlob(hash)) {
+						byte[] data = Arrays.copyOf(buffer, read);
+						pending.add(new PendingBlob(hash, read, stats.codec, pool.submit(() -> compress(data, stats.codec, stats.level))));
+						storePending(pending, pool.getParallelism() * 2);
+						stats.uploaded++;
+						stats.uploadedBytes += read;
+					}
+					
+					stats.chunks++;
+					chunks.add(hash);
+					
+					if(stats.progress != null) {
+						stats.progress.addProcessedBytes(read);
+					}
+				}
+			}
+			
+			files.add(new Document("path", childPath)
+					.append("size", size)
+					.append("mtime", mtime)
+					.append("chunks", chunks));
+		}
+	}
+	
+	public boolean download(String serverName, File folder) throws IOException {
+		return download(serverName, folder, false);
+	}
+	
+	/**
+	 * Restore the latest snapshot of a server into a folder. Files already in the folder
+	 * with the right content are left alone.
+	 * @param serverName the server name
+	 * @param folder where to restore to
+	 * @param prune true to delete files in the folder that are not part of the snapshot
+	 * @return true if restored, false if there is no snapshot
+	 * @throws IOException
+	 */
+	public boolean download(String serverName, File folder, boolean prune) throws IOException {
+		Document manifest = getManifest(serverName);
+		
+		if(manifest == null) {
+			return false;
+		}
+		
+		if(!folder.exists()) {
+			folder.mkdirs();
+		}
+		
+		for(String dir : getDirs(manifest)) {
+			new File(folder, dir).mkdirs();
+		}
+		
+		int reused = 0;
+		
+		byte[] buffer = new byte[CHUNK_SIZE];
+		
+		List<Document> missing = new ArrayList<>();
+		List<String> order = new ArrayList<>();
+		
+		for(Document entry : getFiles(manifest)) {
+			File file = new File(folder, entry.getString("path"));
+			
+			if(file.exists() && file.length() == entry.getLong("size") && hasContent(file, getChunks(entry), buffer)) {
+				file.setLastModified(entry.getLong("mtime"));
+				reused++;
+			}else {
+				missing.add(entry);
+				order.addAll(getChunks(entry));
+			}
+		}
+		
+		BlobFetcher blobs = new BlobFetcher(order);
+		
+		for(Document entry : missing) {
+			File file = new File(folder, entry.getString("path"));
+			int chunks = getChunks(entry).size();
+			
+			File parent = file.getParentFile();
+			if(!parent.exists()) {
+				parent.mkdirs();
+			}
+			//Write next to the file and rename it over, the old file may be hardlinked to a template
+			File temp = new File(parent, file.getName()+".download");
+			try(OutputStream out = new FileOutputStream(temp)){
+				for(int i = 0; i < chunks;i++) {
+					out.write(blobs.next());
+				}
+			}catch(IOException | RuntimeException e) {
+				temp.delete();
+				throw e;
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			
+			file.setLastModified(entry.getLong("mtime"));
+		}
+		
+		if(prune) {
+			Set<String> paths = new HashSet<>(getDirs(manifest));
+			for(Document entry : getFiles(manifest)) {
+				paths.add(entry.getString("path"));
+			}
+			prune(folder, "", paths);
+		}
+		
+		logger.info("Restored snapshot "+manifest.getLong("version")+" of "+serverName+", reused "+reused+" local files");
+		
+		return true;
+	}
+	
+	private void prune(File folder, String path, Set<String> paths) throws IOException {
+		File[] children = folder.listFiles();
+		
+		if(children == null) {
+			return;
+		}
+		
+		for(File child : children) {
+			String childPath = path.isEmpty() ? child.getName() : path+"/"+child.getName();
+			
+			if(!paths.contains(childPath)) {
+				if(child.isDirectory()) {
+					org.apache.commons.io.FileUtils.deleteDirectory(child);
+				}else {
+					child.delete();
+				}
+			}else if(child.isDirectory()) {
+				prune(child, childPath, paths);
+			}
+		}
+	}
+	
+	public void rename(String serverName, String target) {
+		backend.renameManifest(serverName, target);
+	}
+	
+	/**
+	 * Delete the manifest of a server. Its blobs are left for {@link #collectGarbage(long)}
+	 * since other snapshots may share them.
+	 */
+	public void delete(String serverName) {
+		backend.deleteManifest(serverName);
+	}
+	
+	/**
+	 * Delete every blob that no manifest references
+	 * @param minAge blobs younger than this (in ms) are kept, as an upload may still be writing its manifest
+	 * @return the number of blobs deleted
+	 */
+	public int collectGarbage(long minAge) {
+		Set<String> referenced = new HashSet<>();
+		
+		for(Document manifest : backend.findManifests("files.chunks")) {
+			for(Document file : getFiles(manifest)) {
+				referenced.addAll(getChunks(file));
+			}
+		}
+		
+		int deleted = backend.deleteBlobs(referenced, System.currentTimeMillis() - minAge);
+		
+		logger.info("Deleted "+deleted+" unreferenced blobs, "+referenced.size()+" still in use");
+		
+		return deleted;
+	}
+	
+	/**
+	 * Upload compressed blobs until at most max are still waiting
+	 */
+	private void storePending(Deque<PendingBlob> pending, int max) {
+		while(pending.size() > max) {
+			PendingBlob blob = pending.poll();
+			
+			backend.storeBlob(blob.hash, blob.data.join(), new Document("codec", ArchiveCodecs.getBlobName(blob.codec)).append("size", blob.size));
+		}
+	}
+	
+	private static byte[] compress(byte[] data, ArchiveCodec codec, int level) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2);
+		
+		try(OutputStream out = codec.compress(compressed, level)){
+			out.write(data);
+		}
+		
+		return compressed.toByteArray();
+	}
+	
+	/**
+	 * Fetch blobs from the backend and decompress them
+	 * @return the content of each blob that was found, checked against its hash
+	 */
+	private Map<String, byte[]> readBlobs(Collection<String> hashes) throws IOException {
+		Map<String, byte[]> blobs = new HashMap<>();
+		
+		for(Map.Entry<String, Blob> blob : backend.fetchBlobs(hashes).entrySet()) {
+			String hash = blob.getKey();
+			
+			Document metadata = blob.getValue().getMetadata();
+			ByteArrayOutputStream content = new ByteArrayOutputStream(metadata != null && metadata.containsKey("size") ? metadata.getInteger("size") : CHUNK_SIZE);
+			
+			try(InputStream in = ArchiveCodecs.fromMetadata(metadata).decompress(new ByteArrayInputStream(blob.getValue().getData()))){
+				ArchiveUtils.copy(in, content, new byte[64 * 1024]);
+			}
+			
+			byte[] bytes = content.toByteArray();
+			
+			if(!hash.equals(hash(bytes, bytes.length))) {
+				throw new IOException("Blob "+hash+" does not match its hash");
+			}
+			
+			blobs.put(hash, bytes);
+		}
+		
+		return blobs;
+	}
+	
+	private boolean hasContent(File file, List<String> chunks, byte[] buffer) throws IOException {
+		try(InputStream in = new FileInputStream(file)){
+			int read;
+			int i = 0;
+			while((read = readChunk(in, buffer)) > 0) {
+				if(i >= chunks.size() || !chunks.get(i++).equals(hash(buffer, read))) {
+					return false;
+				}
+			}
+			return i == chunks.size();
+		}
+	}
+	
+	private static int readChunk(InputStream in, byte[] buffer) throws IOException {
+		int filled = 0;
+		int read;
+		while(filled < buffer.length && (read = in.read(buffer, filled, buffer.length - filled)) != -1) {
+			filled += read;
+		}
+		return filled;
+	}
+	
+	public static String hash(byte[] data, int length) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(data, 0, length);
+			return Hex.encodeHexString(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static List<Document> getFiles(Document manifest) {
+		List<Document> files = (List<Document>) manifest.get("files");
+		return files == null ? Collections.emptyList() : files;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static List<String> getDirs(Document manifest) {
+		List<String> dirs = (List<String>) manifest.get("dirs");
+		return dirs == null ? Collections.emptyList() : dirs;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static List<String> getChunks(Document file) {
+		List<String> chunks = (List<String>) file.get("chunks");
+		return chunks == null ? Collections.emptyList() : chunks;
+	}
+	
+	/**
+	 * Hands out the blobs of a restore in the order they are written, fetching them a batch ahead
+	 */
+	private class BlobFetcher {
+		
+		private final List<String> order;
+		
+		private int position;
+		
+		private Map<String, byte[]> batch = Collections.emptyMap();
+		
+		public BlobFetcher(List<String> order) {
+			this.order = order;
+		}
+		
+		public byte[] next() throws IOException {
+			String hash = order.get(position);
+			
+			if(!batch.containsKey(hash)) {
+				Set<String> hashes = new LinkedHashSet<>();
+				for(int i = position; i < order.size() && hashes.size() < FETCH_BATCH;i++) {
+					hashes.add(order.get(i));
+				}
+				batch = readBlobs(hashes);
+			}
+			
+			byte[] data = batch.get(hash);
+			
+			if(data == null) {
+				throw new IOException("Missing blob "+hash);
+			}
+			
+			position++;
+			
+			return data;
+		}
+		
+	}
+	
+	private static class PendingBlob {
+		
+		private final String hash;
+		
+		private final int size;
+		
+		private final ArchiveCodec codec;
+		
+		private final ForkJoinTask<byte[]> data;
+		
+		public PendingBlob(String hash, int size, ArchiveCodec codec, ForkJoinTask<byte[]> data) {
+			this.hash = hash;
+			this.size = size;
+			this.codec = codec;
+			this.data = data;
+		}
+		
+	}
+	
+	private static class UploadStats {
+		
+		private Map<String, Document> previousFiles;
+		
+		private UploadProgress progress;
+		
+		private PathFilter filter;
+		
+		private ArchiveCodec codec;
+		
+		private int level;
+		
+		private int chunks;
+		
+		private int unchanged;
+		
+		private int uploaded;
+		
+		private long uploadedBytes;
+		
+	}
+	
+}
@@ -0,0 +1,251 @@
+package com.playerrealms.servermanager.snapshot;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.playerrealms.servermanager.tool.Threads;
+
+/**
+ * Downloads the snapshot of a server before it is asked to start, so the start only
+ * has to move the staged folder into place. Staged folders that are not started
+ * within their time to live are handed to the {@link FolderCache}.
+ */
+public class StagingArea {
+
+	private final File root;
+	
+	private final long ttl;
+	
+	private final SnapshotStore store;
+	
+	private final FolderCache cache;
+	
+	private final Logger logger;
+	
+	private final ExecutorService executor;
+	
+	private final Map<String, Staged> staged = new ConcurrentHashMap<>();
+	
+	/**
+	 * Every prefetch gets its own folder, so an abandoned one still writing never collides with the next
+	 */
+	private final AtomicLong sequence = new AtomicLong();
+	
+	/**
+	 * @param root directory staged folders are kept in, should be on the same disk as the server folders
+	 * @param ttl how long a staged folder waits for its start, in ms
+	 * @param threads how many prefetches run at once
+	 */
+	public StagingArea(File root, long ttl, int threads, SnapshotStore store, FolderCache cache, Logger logger) {
+		this.root = root;
+		this.ttl = ttl;
+		this.store = store;
+		this.cache = cache;
+		this.logger = logger;
+		
+		this.executor = Executors.newFixedThreadPool(threads, Threads.factory("Prefetch", true));
+		
+		//Anything left over from the last run is not tracked anymore
+		try {
+			FileUtils.deleteDirectory(root);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		root.mkdirs();
+	}
+	
+	/**
+	 * Start downloading the snapshot of a server into the staging area
+	 * @return true if a prefetch was started, false if one is already staged or running
+	 */
+	public boolean prefetch(String serverName) {
+		String key = serverName.toLowerCase();
+		
+		Staged entry = new Staged(new File(root, key+"-"+sequence.incrementAndGet()));
+		
+		//The task exists before the entry is published, so promote never sees an entry without one
+		entry.id = new FutureTask<>(() -> {
+			try {
+				return stage(serverName, entry.folder);
+			}finally {
+				boolean abandoned;
+				synchronized (entry) {
+					entry.finished = true;
+					abandoned = entry.abandoned;
+				}
+				if(abandoned) {
+					discard(entry.folder);
+				}
+			}
+		});
+		
+		if(staged.putIfAbsent(key, entry) != null) {
+			return false;
+		}
+		
+		executor.execute(entry.id);
+		
+		return true;
+	}
+	
+	private String stage(String serverName, File folder) throws IOException {
+		String id = store.getSnapshotId(serverName);
+		
+		if(id == null) {
+			return null;
+		}
+		
+		String cached = cache.take(serverName, folder);
+		
+		if(!id.equals(cached)) {
+			store.download(serverName, folder, cached != null);
+		}
+		
+		logger.info("Staged snapshot "+id+" of "+serverName);
+		
+		return id;
+	}
+	
+	/**
+	 * Move the staged folder of a server into place, waiting for its prefetch if it is still running
+	 * @param serverName the server name
+	 * @param target where the folder goes, must not exist yet
+	 * @param timeout how long to wait for a running prefetch, in ms
+	 * @return the staged snapshot id, or null if nothing was staged
+	 */
+	public String promote(String serverName, File target, long timeout) {
+		String key = serverName.toLowerCase();
+		
+		Staged entry = staged.remove(key);
+		
+		if(entry == null) {
+			return null;
+		}
+		
+		String id;
+		
+		try {
+			id = entry.id.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			abandon(entry);
+			return null;
+		} catch (ExecutionException | TimeoutException e) {
+			logger.warning("Prefetch of "+serverName+" did not finish: "+e);
+			abandon(entry);
+			return null;
+		}
+		
+		if(id == null || target.exists() || !entry.folder.renameTo(target)) {
+			discard(entry.folder);
+			return null;
+		}
+		
+		return id;
+	}
+	
+	/**
+	 * Hand staged folders that outlived their time to live to the folder cache
+	 */
+	public void expire() {
+		long now = System.currentTimeMillis();
+		
+		Iterator<Map.Entry<String, Staged>> it = staged.entrySet().iterator();
+		
+		while(it.hasNext()) {
+			Map.Entry<String, Staged> entry = it.next();
+			Staged value = entry.getValue();
+			
+			if(now - value.createdAt < ttl || !value.id.isDone()) {
+				continue;
+			}
+			
+			if(!staged.remove(entry.getKey(), value)) {
+				continue;
+			}
+			
+			String id = null;
+			
+			try {
+				id = value.id.get();
+			} catch (InterruptedException | ExecutionException e) {
+			}
+			
+			if(id == null || !cache.store(entry.getKey(), value.folder, id)) {
+				discard(value.folder);
+			}
+			
+			logger.info("Prefetched folder of "+entry.getKey()+" expired");
+		}
+	}
+	
+	/**
+	 * Drop whatever is staged for a server, used when it is renamed or deleted
+	 */
+	public void remove(String serverName) {
+		String key = serverName.toLowerCase();
+		
+		Staged entry = staged.remove(key);
+		
+		if(entry != null) {
+			abandon(entry);
+		}
+	}
+	
+	public int getStagedCount() {
+		return staged.size();
+	}
+	
+	/**
+	 * Stop a prefetch and delete its folder, by the prefetch itself if it is still writing to it
+	 */
+	private void abandon(Staged entry) {
+		boolean finished;
+		synchronized (entry) {
+			entry.abandoned = true;
+			finished = entry.finished;
+		}
+		entry.id.cancel(true);
+		if(finished) {
+			discard(entry.folder);
+		}
+	}
+	
+	private void discard(File folder) {
+		try {
+			FileUtils.deleteDirectory(folder);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private static class Staged {
+		
+		private final long createdAt = System.currentTimeMillis();
+		
+		private final File folder;
+		
+		private volatile FutureTask<String> id;
+		
+		private boolean finished, abandoned;
+		
+		public Staged(File folder) {
+			this.folder = folder;
+		}
+		
+	}
+	
+}
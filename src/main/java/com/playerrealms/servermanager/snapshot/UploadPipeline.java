@@ -0,0 +1,303 @@
+package com.playerrealms.servermanager.snapshot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import com.playerrealms.servermanager.tool.HashedWheelTimer;
+import com.playerrealms.servermanager.tool.Threads;
+
+/**
+ * Runs server uploads on a fixed number of threads with a bounded queue. When the
+ * queue is full an upload is handed in again on the timer a little later, it never runs on the thread
+ * handing it in because that is usually a server listener or the Redis subscriber. Checkpoints are only
+ * taken while there is room.
+ */
+public class UploadPipeline {
+
+	/**
+	 * How long a rejected upload waits before it is handed in again, and how often that is done before it fails
+	 */
+	private static final long REQUEUE_DELAY = 1000;
+	private static final int MAX_REQUEUES = 600;
+	
+	private final ThreadPoolExecutor executor;
+	
+	private final HashedWheelTimer timer;
+	
+	private final Logger logger;
+	
+	private final int maxAttempts;
+	
+	private final Map<String, UploadProgress> uploads = new ConcurrentHashMap<>();
+	
+	private final Map<String, UploadProgress> checkpoints = new ConcurrentHashMap<>();
+	
+	private final AtomicInteger completed = new AtomicInteger();
+	
+	private final AtomicInteger failed = new AtomicInteger();
+	
+	/**
+	 * @param threads how many uploads run at once
+	 * @param queueSize how many uploads may wait
+	 * @param maxAttempts how often an upload is tried before giving up
+	 * @param timer hands in uploads again that did not fit in the queue
+	 * @param logger
+	 */
+	public UploadPipeline(int threads, int queueSize, int maxAttempts, HashedWheelTimer timer, Logger logger) {
+		this.logger = logger;
+		this.maxAttempts = maxAttempts;
+		this.timer = timer;
+		
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize),
+				Threads.factory("Upload", false), (task, pool) -> {
+					if(task instanceof CheckpointTask) {
+						throw new RejectedExecutionException("Upload queue is full");
+					}
+					UploadTask upload = (UploadTask) task;
+					if(pool.isShutdown()) {
+						//Too late to upload, the server is told it failed so its files stay for the next boot
+						upload.reject("the upload pipeline shut down");
+					}else if(upload.requeues++ < MAX_REQUEUES) {
+						if(upload.requeues == 1) {
+							logger.warning("Upload queue is full, handing in the upload of "+upload.serverName+" again in "+REQUEUE_DELAY+"ms");
+						}
+						timer.schedule(() -> pool.execute(upload), REQUEUE_DELAY, TimeUnit.MILLISECONDS);
+					}else {
+						upload.reject("the upload queue stayed full");
+					}
+				});
+	}
+	
+	/**
+	 * Queue an upload
+	 * @param serverName the server being uploaded
+	 * @param upload does the upload
+	 * @param done called with true once the upload went through, or false after the last failed attempt
+	 * @return the progress of the upload
+	 */
+	public UploadProgress submit(String serverName, Upload upload, Consumer<Boolean> done) {
+		UploadProgress progress = new UploadProgress(serverName);
+		
+		uploads.put(serverName.toLowerCase(), progress);
+		
+		executor.execute(new UploadTask(serverName, upload, done, progress));
+		
+		return progress;
+	}
+	
+	/**
+	 * Queue a checkpoint of a running server if there is room for it
+	 * @return the progress of the checkpoint, or null if the queue is full or the server already has an upload pending
+	 */
+	public UploadProgress offerCheckpoint(String serverName, Upload upload) {
+		String key = serverName.toLowerCase();
+		
+		if(uploads.containsKey(key)) {
+			return null;
+		}
+		
+		UploadProgress progress = new UploadProgress(serverName);
+		
+		if(checkpoints.putIfAbsent(key, progress) != null) {
+			return null;
+		}
+		
+		try {
+			executor.execute(new CheckpointTask(() -> run(serverName, upload, success -> {}, progress, checkpoints)));
+		}catch(RejectedExecutionException e) {
+			checkpoints.remove(key, progress);
+			return null;
+		}
+		
+		return progress;
+	}
+	
+	private void run(String serverName, Upload upload, Consumer<Boolean> done, UploadProgress progress, Map<String, UploadProgress> tracked) {
+		boolean success = false;
+		
+		while(!success && progress.getAttempts() < maxAttempts) {
+			progress.started();
+			try {
+				upload.run(progress);
+				success = true;
+			}catch(IOException | RuntimeException e) {
+				logger.warning("Upload attempt "+progress.getAttempts()+" of "+serverName+" failed: "+e);
+				e.printStackTrace();
+			}
+		}
+		
+		finish(serverName, done, progress, tracked, success);
+	}
+	
+	private void finish(String serverName, Consumer<Boolean> done, UploadProgress progress, Map<String, UploadProgress> tracked, boolean success) {
+		progress.finished(success);
+		
+		if(success) {
+			completed.incrementAndGet();
+		}else {
+			failed.incrementAndGet();
+			logger.severe("Giving up on uploading "+serverName+" after "+progress.getAttempts()+" attempts");
+		}
+		
+		try {
+			done.accept(success);
+		}finally {
+			tracked.remove(serverName.toLowerCase(), progress);
+		}
+	}
+	
+	/**
+	 * @return true if the server has an upload or checkpoint queued or running
+	 */
+	public boolean isPending(String serverName) {
+		String key = serverName.toLowerCase();
+		return uploads.containsKey(key) || checkpoints.containsKey(key);
+	}
+	
+	/**
+	 * @return how many uploads run at once
+	 */
+	public int getThreads() {
+		return executor.getCorePoolSize();
+	}
+	
+	/**
+	 * @return uploads waiting for a thread
+	 */
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+	
+	/**
+	 * @return uploads running right now
+	 */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+	
+	public int getCompletedCount() {
+		return completed.get();
+	}
+	
+	public int getFailedCount() {
+		return failed.get();
+	}
+	
+	/**
+	 * @return the progress of the upload of a server, or null if it is not queued or running
+	 */
+	public UploadProgress getProgress(String serverName) {
+		return uploads.get(serverName.toLowerCase());
+	}
+	
+	public List<UploadProgress> getUploads() {
+		return new ArrayList<>(uploads.values());
+	}
+	
+	/**
+	 * @return checkpoints queued or running, tracked apart from the stop uploads of the same servers
+	 */
+	public List<UploadProgress> getCheckpoints() {
+		return new ArrayList<>(checkpoints.values());
+	}
+	
+	/**
+	 * Change how many uploads run at once
+	 */
+	public void setThreads(int threads) {
+		threads = Math.max(1, threads);
+		//The core size may never be above the maximum, so grow the maximum first and shrink it last
+		if(threads > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(threads);
+			executor.setCorePoolSize(threads);
+		}else {
+			executor.setCorePoolSize(threads);
+			executor.setMaximumPoolSize(threads);
+		}
+	}
+	
+	/**
+	 * @return how many uploads are queued or running
+	 */
+	public int getPendingCount() {
+		return uploads.size();
+	}
+	
+	/**
+	 * Stop taking uploads and wait for the queued ones to finish
+	 * @return true if all uploads finished in time
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		executor.shutdown();
+		return executor.awaitTermination(timeout, unit);
+	}
+	
+	/**
+	 * A stop upload, which is failed instead of dropped when the pool no longer takes it
+	 */
+	private class UploadTask implements Runnable {
+		
+		private final String serverName;
+		
+		private final Upload upload;
+		
+		private final Consumer<Boolean> done;
+		
+		private final UploadProgress progress;
+		
+		private int requeues;
+		
+		public UploadTask(String serverName, Upload upload, Consumer<Boolean> done, UploadProgress progress) {
+			this.serverName = serverName;
+			this.upload = upload;
+			this.done = done;
+			this.progress = progress;
+		}
+		
+		@Override
+		public void run() {
+			UploadPipeline.this.run(serverName, upload, done, progress, uploads);
+		}
+		
+		public void reject(String reason) {
+			logger.warning("Could not queue the upload of "+serverName+", "+reason);
+			finish(serverName, done, progress, uploads, false);
+		}
+		
+	}
+	
+	/**
+	 * Marks checkpoints so a full queue rejects them instead of running them on the caller
+	 */
+	private static class CheckpointTask implements Runnable {
+		
+		private final Runnable task;
+		
+		public CheckpointTask(Runnable task) {
+			this.task = task;
+		}
+		
+		@Override
+		public void run() {
+			task.run();
+		}
+		
+	}
+	
+	public interface Upload {
+		
+		void run(UploadProgress progress) throws IOException;
+		
+	}
+	
+}
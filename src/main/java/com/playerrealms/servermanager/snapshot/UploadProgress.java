@@ -0,0 +1,94 @@
+package com.playerrealms.servermanager.snapshot;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of one server upload in the {@link UploadPipeline}
+ */
+public class UploadProgress {
+
+	public enum State {
+		QUEUED, UPLOADING, DONE, FAILED
+	}
+	
+	private final String serverName;
+	
+	private final long queuedAt;
+	
+	private volatile State state;
+	
+	private volatile long startedAt;
+	
+	private volatile long finishedAt;
+	
+	private volatile int attempts;
+	
+	private volatile long totalBytes;
+	
+	private final AtomicLong processedBytes = new AtomicLong();
+	
+	public UploadProgress(String serverName) {
+		this.serverName = serverName;
+		this.queuedAt = System.currentTimeMillis();
+		this.state = State.QUEUED;
+	}
+	
+	public String getServerName() {
+		return serverName;
+	}
+	
+	public State getState() {
+		return state;
+	}
+	
+	public int getAttempts() {
+		return attempts;
+	}
+	
+	public long getQueuedAt() {
+		return queuedAt;
+	}
+	
+	public long getStartedAt() {
+		return startedAt;
+	}
+	
+	public long getFinishedAt() {
+		return finishedAt;
+	}
+	
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+	
+	public long getProcessedBytes() {
+		return processedBytes.get();
+	}
+	
+	public void setTotalBytes(long totalBytes) {
+		this.totalBytes = totalBytes;
+	}
+	
+	public void addProcessedBytes(long bytes) {
+		processedBytes.addAndGet(bytes);
+	}
+	
+	void started() {
+		attempts++;
+		processedBytes.set(0);
+		startedAt = System.currentTimeMillis();
+		state = State.UPLOADING;
+	}
+	
+	void finished(boolean success) {
+		finishedAt = System.currentTimeMillis();
+		state = success ? State.DONE : State.FAILED;
+	}
+	
+	@Override
+	public String toString() {
+		String percent = totalBytes > 0 ? (processedBytes.get() * 100 / totalBytes)+"%" : "?";
+		return serverName+" "+state+" "+percent+" ("+processedBytes.get()+"/"+totalBytes+" bytes, attempt "+attempts+")";
+	}
+	
+}
@@ -0,0 +1,171 @@
+package com.playerrealms.servermanager.tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+public class ArchiveUtils {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private ArchiveUtils() {}
+	
+	/**
+	 * Write the contents of a folder as a zip archive straight into a stream.
+	 * The stream is finished but not closed so the caller can still abort it.
+	 * @param folder the folder to pack, it is not included in the entry names
+	 * @param out where the archive is written
+	 * @throws IOException
+	 */
+	public static void pack(File folder, OutputStream out) throws IOException {
+		pack(folder, out, Deflater.DEFAULT_COMPRESSION, PathFilter.ALL);
+	}
+	
+	/**
+	 * Same as {@link #pack(File, OutputStream)} with a given deflate level,
+	 * 0 stores the entries uncompressed for when the stream is compressed by something else
+	 * @param filter decides which files are packed
+	 */
+	public static void pack(File folder, OutputStream out, int level, PathFilter filter) throws IOException {
+		ZipOutputStream zos = new ZipOutputStream(out);
+		zos.setLevel(level);
+		
+		byte[] buffer = new byte[BUFFER_SIZE];
+		
+		File[] children = folder.listFiles();
+		
+		if(children != null) {
+			for(File child : children) {
+				pack(child, child.getName(), zos, buffer, filter);
+			}
+		}
+		
+		zos.finish();
+		zos.flush();
+	}
+	
+	private static void pack(File file, String path, ZipOutputStream zos, byte[] buffer, PathFilter filter) throws IOException {
+		boolean accepted = filter.accept(path, file);
+		
+		if(file.isDirectory()) {
+			if(accepted) {
+				ZipEntry entry = new ZipEntry(path+"/");
+				entry.setTime(file.lastModified());
+				zos.putNextEntry(entry);
+				zos.closeEntry();
+			}else if(!filter.descend(path, file)) {
+				return;
+			}
+			
+			File[] children = file.listFiles();
+			
+			if(children != null) {
+				for(File child : children) {
+					pack(child, path+"/"+child.getName(), zos, buffer, filter);
+				}
+			}
+			return;
+		}
+		
+		if(!accepted) {
+			return;
+		}
+		
+		ZipEntry entry = new ZipEntry(path);
+		entry.setTime(file.lastModified());
+		zos.putNextEntry(entry);
+		
+		try(InputStream in = new FileInputStream(file)){
+			copy(in, zos, buffer);
+		}
+		
+		zos.closeEntry();
+	}
+	
+	/**
+	 * Extract a zip archive from a stream into a folder as the entries arrive
+	 * @param in the archive, it is not closed
+	 * @param folder where to extract to
+	 * @throws IOException
+	 */
+	public static void unpack(InputStream in, File folder) throws IOException {
+		ZipInputStream zis = new ZipInputStream(in);
+		
+		String root = folder.getCanonicalPath() + File.separator;
+		
+		byte[] buffer = new byte[BUFFER_SIZE];
+		
+		ZipEntry entry;
+		
+		while((entry = zis.getNextEntry()) != null) {
+			File file = new File(folder, entry.getName());
+			
+			if(!file.getCanonicalPath().startsWith(root)) {
+				throw new ZipException("Entry is outside of the target folder "+entry.getName());
+			}
+			
+			if(entry.isDirectory()) {
+				file.mkdirs();
+			}else {
+				File parent = file.getParentFile();
+				if(!parent.exists()) {
+					parent.mkdirs();
+				}
+				//Write next to the file and rename it over, the old file may be hardlinked into server folders
+				File temp = new File(parent, file.getName()+".unpack");
+				try(OutputStream out = new FileOutputStream(temp)){
+					copy(zis, out, buffer);
+				}
+				if(entry.getTime() != -1) {
+					temp.setLastModified(entry.getTime());
+				}
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			
+			if(entry.isDirectory() && entry.getTime() != -1) {
+				file.setLastModified(entry.getTime());
+			}
+			
+			zis.closeEntry();
+		}
+	}
+	
+	/**
+	 * Wrap a stream so closing the wrapper does not close it
+	 */
+	public static OutputStream shield(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+			
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		};
+	}
+	
+	public static long copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+		long total = 0;
+		int read;
+		while((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+			total += read;
+		}
+		return total;
+	}
+	
+}
@@ -0,0 +1,129 @@
+package com.playerrealms.servermanager.tool;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers the MD5 of files by path, size and modified time so unchanged files are not hashed again.
+ * Also remembers which hash of an archive was last unpacked.
+ * Saved as one tab separated line per file: path, size, mtime, md5, unpacked md5.
+ */
+public class HashIndex {
+
+	private static final String NONE = "-";
+	
+	private final File file;
+	
+	private final Map<String, Entry> entries = new TreeMap<>();
+	
+	public HashIndex(File file) {
+		this.file = file;
+		
+		if(file.exists()) {
+			try(BufferedReader reader = new BufferedReader(new FileReader(file))){
+				String line;
+				while((line = reader.readLine()) != null) {
+					String[] split = line.split("\t");
+					if(split.length != 5) {
+						continue;
+					}
+					Entry entry = new Entry(Long.parseLong(split[1]), Long.parseLong(split[2]), split[3]);
+					entry.unpacked = split[4].equals(NONE) ? null : split[4];
+					entries.put(split[0], entry);
+				}
+			} catch (IOException | NumberFormatException e) {
+				e.printStackTrace();
+				entries.clear();
+			}
+		}
+	}
+	
+	/**
+	 * @return the MD5 of a file, only read from disk if its size or modified time changed
+	 */
+	public String hash(File f) throws IOException {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(f.getPath());
+		}
+		
+		if(entry != null && entry.size == f.length() && entry.mtime == f.lastModified()) {
+			return entry.md5;
+		}
+		
+		String md5 = FileUtils.computeMD5(f);
+		put(f, md5);
+		return md5;
+	}
+	
+	/**
+	 * Record the MD5 of a file that was just written
+	 */
+	public synchronized void put(File f, String md5) {
+		Entry old = entries.get(f.getPath());
+		Entry entry = new Entry(f.length(), f.lastModified(), md5);
+		if(old != null) {
+			entry.unpacked = old.unpacked;
+		}
+		entries.put(f.getPath(), entry);
+	}
+	
+	/**
+	 * @return the MD5 the archive had when it was last unpacked, or null if it never was
+	 */
+	public synchronized String getUnpacked(File f) {
+		Entry entry = entries.get(f.getPath());
+		return entry == null ? null : entry.unpacked;
+	}
+	
+	public synchronized void setUnpacked(File f, String md5) {
+		Entry entry = entries.get(f.getPath());
+		if(entry != null) {
+			entry.unpacked = md5;
+		}
+	}
+	
+	public synchronized void save() throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if(!parent.exists()) {
+			parent.mkdirs();
+		}
+		
+		File temp = new File(parent, file.getName()+".tmp");
+		
+		try(BufferedWriter writer = new BufferedWriter(new FileWriter(temp))){
+			for(Map.Entry<String, Entry> e : entries.entrySet()) {
+				Entry entry = e.getValue();
+				writer.write(e.getKey()+"\t"+entry.size+"\t"+entry.mtime+"\t"+entry.md5+"\t"+(entry.unpacked == null ? NONE : entry.unpacked));
+				writer.newLine();
+			}
+		}
+		
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	private static class Entry {
+		
+		private final long size, mtime;
+		
+		private final String md5;
+		
+		private String unpacked;
+		
+		public Entry(long size, long mtime, String md5) {
+			this.size = size;
+			this.mtime = mtime;
+			this.md5 = md5;
+		}
+		
+	}
+	
+}
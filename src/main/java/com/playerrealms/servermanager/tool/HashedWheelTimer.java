@@ -0,0 +1,264 @@
+package com.playerrealms.servermanager.tool;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs deadlines on one thread with a hashed wheel. Scheduling and cancelling are O(1), deadlines fire
+ * on the first tick after they pass, so they are accurate to one tick. Tasks run on the timer thread
+ * and must be quick, hand anything blocking to an executor.
+ */
+public class HashedWheelTimer {
+
+	private final long tick;
+	
+	private final Bucket[] wheel;
+	
+	private final int mask;
+	
+	private final String name;
+	
+	private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+	
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+	
+	private final AtomicInteger pending = new AtomicInteger();
+	
+	private final Object lock = new Object();
+	
+	private volatile boolean running;
+	
+	private Thread worker;
+	
+	private long startTime, ticks;
+	
+	/**
+	 * @param name name of the timer thread
+	 * @param tick how often the wheel moves
+	 * @param wheelSize buckets in the wheel, rounded up to a power of two
+	 */
+	public HashedWheelTimer(String name, long tick, TimeUnit unit, int wheelSize) {
+		this.name = name;
+		this.tick = unit.toNanos(tick);
+		
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		
+		wheel = new Bucket[size];
+		for(int i = 0; i < size;i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = size - 1;
+	}
+	
+	/**
+	 * Run a task once after a delay
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		start();
+		
+		Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+		
+		pending.incrementAndGet();
+		scheduled.add(timeout);
+		
+		return timeout;
+	}
+	
+	/**
+	 * @return deadlines that have not fired or been cancelled
+	 */
+	public int getPendingCount() {
+		return pending.get();
+	}
+	
+	public void stop() {
+		synchronized (lock) {
+			running = false;
+			if(worker != null) {
+				worker.interrupt();
+				worker = null;
+			}
+		}
+	}
+	
+	private void start() {
+		if(running) {
+			return;
+		}
+		synchronized (lock) {
+			if(running) {
+				return;
+			}
+			running = true;
+			startTime = System.nanoTime();
+			ticks = 0;
+			worker = new Thread(this::run);
+			worker.setName(name);
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+	
+	private void run() {
+		while(running) {
+			long deadline = startTime + (ticks + 1) * tick;
+			long sleep = deadline - System.nanoTime();
+			
+			if(sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					if(!running) {
+						return;
+					}
+				}
+				continue;
+			}
+			
+			removeCancelled();
+			transferScheduled();
+			
+			wheel[(int) (ticks & mask)].expire();
+			
+			ticks++;
+		}
+	}
+	
+	private void transferScheduled() {
+		Timeout timeout;
+		while((timeout = scheduled.poll()) != null) {
+			if(timeout.state.get() != Timeout.WAITING) {
+				continue;
+			}
+			
+			//Bucket n is expired at startTime + (n + 1) * tick, past deadlines go in the current bucket
+			long slot = Math.max((timeout.deadline - startTime + tick - 1) / tick - 1, ticks);
+			
+			timeout.rounds = (slot - ticks) / wheel.length;
+			wheel[(int) (slot & mask)].add(timeout);
+		}
+	}
+	
+	private void removeCancelled() {
+		Timeout timeout;
+		while((timeout = cancelled.poll()) != null) {
+			if(timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+	
+	public class Timeout {
+		
+		private static final int WAITING = 0, CANCELLED = 1, EXPIRED = 2;
+		
+		private final Runnable task;
+		
+		private final long deadline;
+		
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+		
+		private long rounds;
+		
+		private Timeout next, prev;
+		
+		private Bucket bucket;
+		
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+		
+		/**
+		 * @return true if cancelled, false if it already fired or was cancelled
+		 */
+		public boolean cancel() {
+			if(!state.compareAndSet(WAITING, CANCELLED)) {
+				return false;
+			}
+			pending.decrementAndGet();
+			cancelled.add(this);
+			return true;
+		}
+		
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+		
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+		
+		private void expire() {
+			if(!state.compareAndSet(WAITING, EXPIRED)) {
+				return;
+			}
+			pending.decrementAndGet();
+			try {
+				task.run();
+			}catch(Throwable e) {
+				e.printStackTrace();
+			}
+		}
+		
+	}
+	
+	/**
+	 * Doubly linked so cancelled timeouts can be taken out in O(1), only touched by the timer thread
+	 */
+	private class Bucket {
+		
+		private Timeout head, tail;
+		
+		private void add(Timeout timeout) {
+			timeout.bucket = this;
+			if(head == null) {
+				head = tail = timeout;
+			}else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+		
+		private void expire() {
+			Timeout timeout = head;
+			while(timeout != null) {
+				Timeout next = timeout.next;
+				
+				if(timeout.isCancelled()) {
+					remove(timeout);
+				}else if(timeout.rounds <= 0) {
+					remove(timeout);
+					timeout.expire();
+				}else {
+					timeout.rounds--;
+				}
+				
+				timeout = next;
+			}
+		}
+		
+		private void remove(Timeout timeout) {
+			if(timeout.bucket != this) {
+				return;
+			}
+			if(timeout.prev != null) {
+				timeout.prev.next = timeout.next;
+			}else {
+				head = timeout.next;
+			}
+			if(timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			}else {
+				tail = timeout.prev;
+			}
+			timeout.next = timeout.prev = null;
+			timeout.bucket = null;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,184 @@
+package com.playerrealms.servermanager.tool;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks on a shared pool, one at a time per key in the order they were submitted.
+ * Each key can have a limited number of tasks waiting behind the running one, further tasks are rejected.
+ */
+public class KeyedExecutor {
+
+	private final Executor workers;
+	
+	private final int maxQueued;
+	
+	private final Map<String, Queue<Task>> queues = new HashMap<>();
+	
+	private int queued;
+	
+	private final AtomicLong completed = new AtomicLong(), rejected = new AtomicLong(), failed = new AtomicLong();
+	
+	private final AtomicLong totalWait = new AtomicLong(), maxWait = new AtomicLong();
+	
+	/**
+	 * @param workers where tasks run, should be bounded
+	 * @param maxQueued how many tasks a key can have waiting behind its running task, 0 to reject while one runs
+	 */
+	public KeyedExecutor(Executor workers, int maxQueued) {
+		this.workers = workers;
+		this.maxQueued = maxQueued;
+	}
+	
+	/**
+	 * Run a task after every task submitted before it for the same key
+	 * @param key keys are compared ignoring case
+	 * @return true if the task was accepted, false if the key has too many waiting or the workers are shut down
+	 */
+	public boolean submit(String key, Runnable task) {
+		String k = key.toLowerCase();
+		
+		Task t = new Task(task);
+		
+		synchronized (this) {
+			Queue<Task> queue = queues.get(k);
+			
+			if(queue == null) {
+				//Nothing running for this key, the task runs now and its queue marks the key as busy
+				queues.put(k, new ArrayDeque<>());
+			}else if(queue.size() >= maxQueued) {
+				rejected.incrementAndGet();
+				return false;
+			}else {
+				queue.add(t);
+				queued++;
+				return true;
+			}
+		}
+		
+		return execute(k, t);
+	}
+	
+	/**
+	 * @return false if the workers rejected the task
+	 */
+	private boolean execute(String key, Task task) {
+		try {
+			run(key, task);
+			return true;
+		}catch(RejectedExecutionException e) {
+			//Workers are shut down, drop everything waiting for this key
+			synchronized (this) {
+				Queue<Task> queue = queues.remove(key);
+				if(queue != null) {
+					queued -= queue.size();
+				}
+			}
+			rejected.incrementAndGet();
+			return false;
+		}
+	}
+	
+	private void run(String key, Task task) {
+		workers.execute(() -> {
+			long wait = System.currentTimeMillis() - task.submitted;
+			totalWait.addAndGet(wait);
+			maxWait.accumulateAndGet(wait, Math::max);
+			
+			try {
+				task.task.run();
+			}catch(Throwable e) {
+				failed.incrementAndGet();
+				e.printStackTrace();
+			}finally {
+				completed.incrementAndGet();
+				next(key);
+			}
+		});
+	}
+	
+	private void next(String key) {
+		Task next;
+		
+		synchronized (this) {
+			Queue<Task> queue = queues.get(key);
+			
+			next = queue.poll();
+			
+			if(next == null) {
+				queues.remove(key);
+				return;
+			}
+			
+			queued--;
+		}
+		
+		execute(key, next);
+	}
+	
+	/**
+	 * @return true if a task for the key is running or waiting
+	 */
+	public synchronized boolean isBusy(String key) {
+		return queues.containsKey(key.toLowerCase());
+	}
+	
+	/**
+	 * @return how many tasks wait behind the running task of their key
+	 */
+	public synchronized int getQueueDepth() {
+		return queued;
+	}
+	
+	/**
+	 * @return how many keys have a task running or about to run
+	 */
+	public synchronized int getActiveKeys() {
+		return queues.size();
+	}
+	
+	public long getCompletedCount() {
+		return completed.get();
+	}
+	
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+	
+	public long getFailedCount() {
+		return failed.get();
+	}
+	
+	/**
+	 * @return mean time from submit to start in ms
+	 */
+	public long getAverageWait() {
+		long count = completed.get();
+		return count == 0 ? 0 : totalWait.get() / count;
+	}
+	
+	/**
+	 * @return longest time from submit to start in ms
+	 */
+	public long getMaxWait() {
+		return maxWait.get();
+	}
+	
+	private static class Task {
+		
+		private final Runnable task;
+		
+		private final long submitted = System.currentTimeMillis();
+		
+		public Task(Runnable task) {
+			this.task = task;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,156 @@
+package com.playerrealms.servermanager.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples memory from /proc/meminfo, limited by the cgroup memory files when we run in a container.
+ * Sampling parses with one reused {@link StatReader}, readers get the last {@link Sample}.
+ */
+public class MemorySampler {
+
+	private static final byte[] MEM_TOTAL = "MemTotal:".getBytes();
+	private static final byte[] MEM_AVAILABLE = "MemAvailable:".getBytes();
+	private static final byte[] MEM_FREE = "MemFree:".getBytes();
+	private static final byte[] BUFFERS = "Buffers:".getBytes();
+	private static final byte[] CACHED = "Cached:".getBytes();
+	
+	private final File meminfo;
+	
+	private final File[] cgroupLimit, cgroupUsage;
+	
+	private final StatReader reader = new StatReader();
+	
+	private volatile Sample last;
+	
+	private ScheduledFuture<?> task;
+	
+	/**
+	 * @param procRoot usually /proc
+	 * @param cgroupRoot usually /sys/fs/cgroup
+	 */
+	public MemorySampler(File procRoot, File cgroupRoot) {
+		meminfo = new File(procRoot, "meminfo");
+		//cgroup v2 first, then v1
+		cgroupLimit = new File[] {new File(cgroupRoot, "memory.max"), new File(cgroupRoot, "memory/memory.limit_in_bytes")};
+		cgroupUsage = new File[] {new File(cgroupRoot, "memory.current"), new File(cgroupRoot, "memory/memory.usage_in_bytes")};
+	}
+	
+	public MemorySampler() {
+		this(new File("/proc"), new File("/sys/fs/cgroup"));
+	}
+	
+	/**
+	 * Sample on a scheduler until {@link #stop()} is called
+	 * @param interval time between samples in ms
+	 */
+	public synchronized void start(ScheduledExecutorService scheduler, long interval) {
+		stop();
+		sample();
+		task = scheduler.scheduleWithFixedDelay(this::sample, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	public synchronized void stop() {
+		if(task != null) {
+			task.cancel(false);
+			task = null;
+		}
+	}
+	
+	/**
+	 * @return the last sample, taking one now if there is none yet
+	 */
+	public Sample getSample() {
+		Sample sample = last;
+		if(sample == null) {
+			sample = sample();
+		}
+		return sample;
+	}
+	
+	/**
+	 * Read memory now and publish it as the last sample
+	 */
+	public synchronized Sample sample() {
+		try {
+			reader.read(meminfo);
+			
+			long total = reader.find(MEM_TOTAL);
+			long available = reader.find(MEM_AVAILABLE);
+			
+			if(available < 0) {
+				//Kernels before 3.14 have no MemAvailable
+				available = Math.max(0, reader.find(MEM_FREE)) + Math.max(0, reader.find(BUFFERS)) + Math.max(0, reader.find(CACHED));
+			}
+			
+			total *= 1024;
+			available *= 1024;
+			
+			for(int i = 0; i < cgroupLimit.length;i++) {
+				if(!cgroupLimit[i].exists()) {
+					continue;
+				}
+				
+				reader.read(cgroupLimit[i]);
+				long limit = reader.parseNumber();
+				
+				if(limit > 0 && limit < total) {
+					long usage = 0;
+					if(cgroupUsage[i].exists()) {
+						reader.read(cgroupUsage[i]);
+						usage = Math.max(0, reader.parseNumber());
+					}
+					
+					total = limit;
+					available = Math.min(available, Math.max(0, limit - usage));
+				}
+				break;
+			}
+			
+			Sample sample = new Sample(total, available, System.currentTimeMillis());
+			last = sample;
+			return sample;
+		} catch (IOException e) {
+			e.printStackTrace();
+			Sample sample = last;
+			return sample == null ? new Sample(0, 0, 0) : sample;
+		}
+	}
+	
+	public static class Sample {
+		
+		private final long total, available, time;
+		
+		public Sample(long total, long available, long time) {
+			this.total = total;
+			this.available = available;
+			this.time = time;
+		}
+		
+		/**
+		 * @return physical memory in bytes, or the cgroup limit if lower
+		 */
+		public long getTotal() {
+			return total;
+		}
+		
+		/**
+		 * @return memory that can be used without swapping in bytes
+		 */
+		public long getAvailable() {
+			return available;
+		}
+		
+		/**
+		 * @return when the sample was taken
+		 */
+		public long getTime() {
+			return time;
+		}
+		
+	}
+	
+}
@@ -1,13 +1,7 @@
 package com.playerrealms.servermanager.tool;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.lang.management.ManagementFactory;
-import java.nio.charset.Charset;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 public class OSUtils {
@@ -33,29 +27,17 @@ public class OSUtils {
 		return true;
 	}
 	
-	private static Map<String, Long> getMemoryData() throws IOException {
-		if(!isUnix()){
-			return Collections.emptyMap();
-		}
-		
-		Process process = Runtime.getRuntime().exec(new String[] {"free", "-b"});
-		
-		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), Charset.defaultCharset()));
-		
-		String[] names = reader.readLine().replaceAll("( +)"," ").trim().split(" ");
-		
-		String[] memNums = reader.readLine().replaceAll("( +)"," ").trim().split(" ");
-		
-		Map<String, Long> memory = new HashMap<>();
-		
-		int i = 1;
-		
-		for(String name : names){
-			memory.put(name, Long.parseLong(memNums[i++]));
-		}
-		
+	private static volatile MemorySampler memory = new MemorySampler();
+	
+	/**
+	 * Replace the sampler memory is read from, the manager sets one that samples in the background
+	 */
+	public static void setMemorySampler(MemorySampler sampler) {
+		memory = sampler;
+	}
+	
+	public static MemorySampler getMemorySampler() {
 		return memory;
-		
 	}
 	
 	@SuppressWarnings("restriction")
@@ -66,11 +48,7 @@ public class OSUtils {
 		}
 		
 		if(isUnix()){
-			try {
-				return getMemoryData().get("total");
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+			return memory.getSample().getTotal();
 		}
 		
 		return Integer.MAX_VALUE;
@@ -83,13 +61,7 @@ public class OSUtils {
 		}
 		
 		if(isUnix()){
-			
-			try {
-				return getMemoryData().get("available");
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			
+			return memory.getSample().getAvailable();
 		}
 		
 		return 0;
@@ -0,0 +1,482 @@
+package com.playerrealms.servermanager.tool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a standard zip archive of a folder, deflating files in blocks across a
+ * {@link ForkJoinPool}.
+ * <p>
+ * Every file is cut into blocks which are compressed independently, primed with the
+ * last 32 KB of the block before them, and joined with sync flushes so the result
+ * is a single ordinary deflate stream. Entries use data descriptors so nothing has
+ * to be known before the data is written, which keeps the archive streamable.
+ * Files that could reach 4 GB get zip64 sizes in their local header and descriptor,
+ * decided from their length before they are read.
+ */
+public class ParallelZipWriter {
+
+	private static final int BLOCK_SIZE = 256 * 1024;
+	
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+	
+	private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+	
+	private static final int FLAG_DESCRIPTOR = 0x08;
+	
+	private static final int FLAG_UTF8 = 0x800;
+	
+	private final ForkJoinPool pool;
+	
+	private final int level;
+	
+	private final int window;
+	
+	/**
+	 * @param pool pool the blocks are compressed on
+	 * @param level deflate level, see {@link Deflater}
+	 */
+	public ParallelZipWriter(ForkJoinPool pool, int level) {
+		this.pool = pool;
+		this.level = level;
+		this.window = pool.getParallelism() * 4;
+	}
+	
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+	
+	public int getLevel() {
+		return level;
+	}
+	
+	/**
+	 * Write the contents of a folder as a zip archive into a stream.
+	 * The stream is not closed.
+	 * @param folder the folder to pack, it is not included in the entry names
+	 * @param out where the archive is written
+	 * @throws IOException
+	 */
+	public void pack(File folder, OutputStream out) throws IOException {
+		pack(folder, out, level, PathFilter.ALL);
+	}
+	
+	/**
+	 * Same as {@link #pack(File, OutputStream)} with a different deflate level
+	 * @param filter decides which files are packed
+	 */
+	public void pack(File folder, OutputStream out, int level, PathFilter filter) throws IOException {
+		Archive archive = new Archive(out, level, filter);
+		
+		File[] children = folder.listFiles();
+		
+		if(children != null) {
+			for(File child : children) {
+				archive.add(child, child.getName());
+			}
+		}
+		
+		archive.finish();
+	}
+	
+	/**
+	 * Deflate one block of a file
+	 * @param data the block
+	 * @param length how much of data to use
+	 * @param dictionary the end of the previous block, or null for the first block
+	 * @param last true to end the deflate stream after this block
+	 * @param level deflate level
+	 * @return raw deflate data
+	 */
+	public static byte[] deflateBlock(byte[] data, int length, byte[] dictionary, boolean last, int level) {
+		Deflater deflater = new Deflater(level, true);
+		
+		try {
+			if(dictionary != null) {
+				deflater.setDictionary(dictionary);
+			}
+			deflater.setInput(data, 0, length);
+			
+			ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+			byte[] buffer = new byte[64 * 1024];
+			
+			if(last) {
+				deflater.finish();
+				while(!deflater.finished()) {
+					int count = deflater.deflate(buffer);
+					out.write(buffer, 0, count);
+				}
+			}else {
+				int count;
+				do {
+					count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					out.write(buffer, 0, count);
+				}while(count == buffer.length);
+			}
+			
+			return out.toByteArray();
+		}finally {
+			deflater.end();
+		}
+	}
+	
+	private static int readBlock(InputStream in, byte[] buffer) throws IOException {
+		int filled = 0;
+		int read;
+		while(filled < buffer.length && (read = in.read(buffer, filled, buffer.length - filled)) != -1) {
+			filled += read;
+		}
+		return filled;
+	}
+	
+	/**
+	 * @return true if the sizes of a file this long may not fit in 32 bits. Deflate makes data that does not
+	 * compress slightly bigger, the margin is well above that.
+	 */
+	private static boolean needsZip64(long length) {
+		return length + (length >> 10) + 1024 >= ZIP64_LIMIT;
+	}
+	
+	private static long toDosTime(long time) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		
+		int year = c.get(Calendar.YEAR);
+		
+		if(year < 1980) {
+			return (1 << 21) | (1 << 16);
+		}
+		
+		return ((year - 1980) << 25) | ((c.get(Calendar.MONTH) + 1) << 21) | (c.get(Calendar.DAY_OF_MONTH) << 16)
+				| (c.get(Calendar.HOUR_OF_DAY) << 11) | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1);
+	}
+	
+	private class Archive {
+		
+		private final OutputStream out;
+		
+		private final List<Entry> entries = new ArrayList<>();
+		
+		private final Deque<Item> pending = new ArrayDeque<>();
+		
+		private final byte[] header = new byte[64];
+		
+		private final int level;
+		
+		private final PathFilter filter;
+		
+		private long written;
+		
+		public Archive(OutputStream out, int level, PathFilter filter) {
+			this.out = out;
+			this.level = level;
+			this.filter = filter;
+		}
+		
+		public void add(File file, String path) throws IOException {
+			boolean accepted = filter.accept(path, file);
+			
+			if(file.isDirectory()) {
+				if(accepted) {
+					Entry entry = new Entry(path+"/", file.lastModified(), true);
+					enqueue(() -> writeLocalHeader(entry));
+				}else if(!filter.descend(path, file)) {
+					return;
+				}
+				
+				File[] children = file.listFiles();
+				
+				if(children != null) {
+					for(File child : children) {
+						add(child, path+"/"+child.getName());
+					}
+				}
+				return;
+			}
+			
+			if(!accepted) {
+				return;
+			}
+			
+			Entry entry = new Entry(path, file.lastModified(), false);
+			entry.zip64 = needsZip64(file.length());
+			enqueue(() -> writeLocalHeader(entry));
+			
+			CRC32 crc = new CRC32();
+			long size = 0;
+			
+			try(InputStream in = new FileInputStream(file)){
+				byte[] block = new byte[BLOCK_SIZE];
+				int length = readBlock(in, block);
+				byte[] dictionary = null;
+				
+				while(true) {
+					byte[] next = new byte[BLOCK_SIZE];
+					int nextLength = length == BLOCK_SIZE ? readBlock(in, next) : 0;
+					boolean last = nextLength == 0;
+					
+					crc.update(block, 0, length);
+					size += length;
+					
+					byte[] data = block;
+					int dataLength = length;
+					byte[] dict = dictionary;
+					
+					ForkJoinTask<byte[]> task = pool.submit(() -> deflateBlock(data, dataLength, dict, last, level));
+					enqueue(() -> writeBlock(entry, task.join()));
+					
+					if(last) {
+						break;
+					}
+					
+					dictionary = length >= DICTIONARY_SIZE ? Arrays.copyOfRange(block, length - DICTIONARY_SIZE, length) : null;
+					block = next;
+					length = nextLength;
+				}
+			}
+			
+			entry.crc = crc.getValue();
+			entry.size = size;
+			enqueue(() -> writeDescriptor(entry));
+		}
+		
+		private void enqueue(Item item) throws IOException {
+			pending.add(item);
+			while(pending.size() > window) {
+				pending.poll().write();
+			}
+		}
+		
+		public void finish() throws IOException {
+			while(!pending.isEmpty()) {
+				pending.poll().write();
+			}
+			
+			long centralOffset = written;
+			
+			for(Entry entry : entries) {
+				writeCentralHeader(entry);
+			}
+			
+			long centralSize = written - centralOffset;
+			
+			if(entries.size() >= 0xFFFF || centralOffset >= ZIP64_LIMIT || centralSize >= ZIP64_LIMIT) {
+				long zip64Offset = written;
+				
+				int pos = 0;
+				pos = putInt(header, pos, 0x06064b50);
+				pos = putLong(header, pos, 44);
+				pos = putShort(header, pos, 45);
+				pos = putShort(header, pos, 45);
+				pos = putInt(header, pos, 0);
+				pos = putInt(header, pos, 0);
+				pos = putLong(header, pos, entries.size());
+				pos = putLong(header, pos, entries.size());
+				pos = putLong(header, pos, centralSize);
+				pos = putLong(header, pos, centralOffset);
+				write(header, pos);
+				
+				pos = 0;
+				pos = putInt(header, pos, 0x07064b50);
+				pos = putInt(header, pos, 0);
+				pos = putLong(header, pos, zip64Offset);
+				pos = putInt(header, pos, 1);
+				write(header, pos);
+			}
+			
+			int pos = 0;
+			pos = putInt(header, pos, 0x06054b50);
+			pos = putShort(header, pos, 0);
+			pos = putShort(header, pos, 0);
+			pos = putShort(header, pos, (int) Math.min(entries.size(), 0xFFFF));
+			pos = putShort(header, pos, (int) Math.min(entries.size(), 0xFFFF));
+			pos = putInt(header, pos, Math.min(centralSize, ZIP64_LIMIT));
+			pos = putInt(header, pos, Math.min(centralOffset, ZIP64_LIMIT));
+			pos = putShort(header, pos, 0);
+			write(header, pos);
+			
+			out.flush();
+		}
+		
+		private void writeLocalHeader(Entry entry) throws IOException {
+			entry.offset = written;
+			entries.add(entry);
+			
+			int pos = 0;
+			pos = putInt(header, pos, 0x04034b50);
+			pos = putShort(header, pos, entry.zip64 ? 45 : 20);
+			pos = putShort(header, pos, entry.getFlags());
+			pos = putShort(header, pos, entry.getMethod());
+			pos = putInt(header, pos, entry.time);
+			pos = putInt(header, pos, 0);
+			//The sizes follow in the descriptor, a zip64 extra field tells readers they are 8 bytes there
+			pos = putInt(header, pos, entry.zip64 ? ZIP64_LIMIT : 0);
+			pos = putInt(header, pos, entry.zip64 ? ZIP64_LIMIT : 0);
+			pos = putShort(header, pos, entry.name.length);
+			pos = putShort(header, pos, entry.zip64 ? 20 : 0);
+			write(header, pos);
+			write(entry.name, entry.name.length);
+			
+			if(entry.zip64) {
+				pos = 0;
+				pos = putShort(header, pos, 0x0001);
+				pos = putShort(header, pos, 16);
+				pos = putLong(header, pos, 0);
+				pos = putLong(header, pos, 0);
+				write(header, pos);
+			}
+		}
+		
+		private void writeBlock(Entry entry, byte[] data) throws IOException {
+			write(data, data.length);
+			entry.compressedSize += data.length;
+		}
+		
+		private void writeDescriptor(Entry entry) throws IOException {
+			int pos = 0;
+			pos = putInt(header, pos, 0x08074b50);
+			pos = putInt(header, pos, entry.crc);
+			if(entry.zip64) {
+				pos = putLong(header, pos, entry.compressedSize);
+				pos = putLong(header, pos, entry.size);
+			}else if(entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT) {
+				//The local header already went out without zip64
+				throw new IOException("File grew past 4 GB while it was packed");
+			}else {
+				pos = putInt(header, pos, entry.compressedSize);
+				pos = putInt(header, pos, entry.size);
+			}
+			write(header, pos);
+		}
+		
+		private void writeCentralHeader(Entry entry) throws IOException {
+			boolean bigSize = entry.size >= ZIP64_LIMIT;
+			boolean bigCompressed = entry.compressedSize >= ZIP64_LIMIT;
+			boolean bigOffset = entry.offset >= ZIP64_LIMIT;
+			
+			int extraLength = 0;
+			if(bigSize || bigCompressed || bigOffset) {
+				extraLength = 4 + (bigSize ? 8 : 0) + (bigCompressed ? 8 : 0) + (bigOffset ? 8 : 0);
+			}
+			
+			int version = extraLength > 0 ? 45 : 20;
+			
+			int pos = 0;
+			pos = putInt(header, pos, 0x02014b50);
+			pos = putShort(header, pos, version);
+			pos = putShort(header, pos, version);
+			pos = putShort(header, pos, entry.getFlags());
+			pos = putShort(header, pos, entry.getMethod());
+			pos = putInt(header, pos, entry.time);
+			pos = putInt(header, pos, entry.crc);
+			pos = putInt(header, pos, Math.min(entry.compressedSize, ZIP64_LIMIT));
+			pos = putInt(header, pos, Math.min(entry.size, ZIP64_LIMIT));
+			pos = putShort(header, pos, entry.name.length);
+			pos = putShort(header, pos, extraLength);
+			pos = putShort(header, pos, 0);
+			pos = putShort(header, pos, 0);
+			pos = putShort(header, pos, 0);
+			pos = putInt(header, pos, entry.directory ? 0x10 : 0);
+			pos = putInt(header, pos, Math.min(entry.offset, ZIP64_LIMIT));
+			write(header, pos);
+			write(entry.name, entry.name.length);
+			
+			if(extraLength > 0) {
+				pos = 0;
+				pos = putShort(header, pos, 0x0001);
+				pos = putShort(header, pos, extraLength - 4);
+				if(bigSize) {
+					pos = putLong(header, pos, entry.size);
+				}
+				if(bigCompressed) {
+					pos = putLong(header, pos, entry.compressedSize);
+				}
+				if(bigOffset) {
+					pos = putLong(header, pos, entry.offset);
+				}
+				write(header, pos);
+			}
+		}
+		
+		private void write(byte[] data, int length) throws IOException {
+			out.write(data, 0, length);
+			written += length;
+		}
+		
+	}
+	
+	private static int putShort(byte[] b, int pos, int value) {
+		b[pos] = (byte) value;
+		b[pos + 1] = (byte) (value >>> 8);
+		return pos + 2;
+	}
+	
+	private static int putInt(byte[] b, int pos, long value) {
+		b[pos] = (byte) value;
+		b[pos + 1] = (byte) (value >>> 8);
+		b[pos + 2] = (byte) (value >>> 16);
+		b[pos + 3] = (byte) (value >>> 24);
+		return pos + 4;
+	}
+	
+	private static int putLong(byte[] b, int pos, long value) {
+		pos = putInt(b, pos, value);
+		return putInt(b, pos, value >>> 32);
+	}
+	
+	private interface Item {
+		
+		void write() throws IOException;
+		
+	}
+	
+	private static class Entry {
+		
+		private final byte[] name;
+		
+		private final long time;
+		
+		private final boolean directory;
+		
+		private long offset;
+		
+		private long crc;
+		
+		private long size;
+		
+		private long compressedSize;
+		
+		private boolean zip64;
+		
+		public Entry(String name, long lastModified, boolean directory) {
+			this.name = name.getBytes(StandardCharsets.UTF_8);
+			this.time = toDosTime(lastModified);
+			this.directory = directory;
+		}
+		
+		public int getFlags() {
+			return directory ? FLAG_UTF8 : FLAG_UTF8 | FLAG_DESCRIPTOR;
+		}
+		
+		public int getMethod() {
+			return directory ? 0 : 8;
+		}
+		
+	}
+	
+}
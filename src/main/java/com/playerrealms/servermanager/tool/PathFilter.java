@@ -0,0 +1,28 @@
+package com.playerrealms.servermanager.tool;
+
+import java.io.File;
+
+/**
+ * Decides which files of a server folder go into an archive or snapshot
+ */
+public interface PathFilter {
+
+	PathFilter ALL = (path, file) -> true;
+	
+	/**
+	 * @param path the path relative to the folder being packed, separated by /
+	 * @param file the file itself
+	 * @return true to pack it, false to leave it out. A folder that is left out is only walked if {@link #descend(String, File)} says so
+	 */
+	boolean accept(String path, File file);
+	
+	/**
+	 * @param path the path of a folder relative to the folder being packed, separated by /
+	 * @param dir the folder itself
+	 * @return true to look for files to pack inside the folder
+	 */
+	default boolean descend(String path, File dir) {
+		return accept(path, dir);
+	}
+	
+}
@@ -0,0 +1,138 @@
+package com.playerrealms.servermanager.tool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads an underlying stream on its own thread into a bounded queue of blocks,
+ * so whatever consumes this stream overlaps with the (network) reads.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+	private static final byte[] EOF = new byte[0];
+	
+	private final InputStream in;
+	
+	private final BlockingQueue<byte[]> blocks;
+	
+	private final Thread reader;
+	
+	private volatile Throwable error;
+	
+	private volatile boolean closed;
+	
+	private byte[] current;
+	
+	private int position;
+	
+	/**
+	 * @param in the stream to read ahead of, closed by the reader thread once it stops
+	 * @param blockSize size of each block read from the stream
+	 * @param maxBlocks how many blocks may be buffered before the reader waits
+	 * @param name name of the reader thread
+	 */
+	public ReadAheadInputStream(InputStream in, int blockSize, int maxBlocks, String name) {
+		this.in = in;
+		this.blocks = new ArrayBlockingQueue<>(maxBlocks);
+		
+		reader = Threads.start(name, () -> {
+			try {
+				while(!closed) {
+					byte[] block = new byte[blockSize];
+					int filled = 0;
+					int read = 0;
+					
+					while(filled < blockSize && (read = in.read(block, filled, blockSize - filled)) != -1) {
+						filled += read;
+					}
+					
+					if(filled > 0) {
+						blocks.put(filled == blockSize ? block : Arrays.copyOf(block, filled));
+					}
+					
+					if(read == -1) {
+						break;
+					}
+				}
+			}catch(InterruptedException e) {
+				//Closed while waiting for room in the queue
+			}catch(Throwable e) {
+				//The driver throws runtime exceptions too, any of them has to end the stream
+				error = e;
+			}finally {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+				try {
+					//Nobody reads a closed stream, otherwise the consumer waits for EOF
+					while(!closed && !blocks.offer(EOF, 100, TimeUnit.MILLISECONDS));
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+	}
+	
+	private boolean nextBlock() throws IOException {
+		if(current == EOF) {
+			return false;
+		}
+		if(current != null && position < current.length) {
+			return true;
+		}
+		try {
+			current = blocks.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for data", e);
+		}
+		position = 0;
+		if(current == EOF) {
+			Throwable error = this.error;
+			if(error instanceof IOException) {
+				throw (IOException) error;
+			}
+			if(error != null) {
+				throw new IOException("Read ahead failed", error);
+			}
+			return false;
+		}
+		return true;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if(!nextBlock()) {
+			return -1;
+		}
+		return current[position++] & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		if(!nextBlock()) {
+			return -1;
+		}
+		int count = Math.min(len, current.length - position);
+		System.arraycopy(current, position, b, off, count);
+		position += count;
+		return count;
+	}
+	
+	/**
+	 * Stops the reader thread, which closes the underlying stream once its current read returns
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		reader.interrupt();
+	}
+	
+}
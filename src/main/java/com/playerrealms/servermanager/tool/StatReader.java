@@ -0,0 +1,158 @@
+package com.playerrealms.servermanager.tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads small /proc and /sys files into a reused buffer and parses numbers out of them in place.
+ * Not thread safe, each sampler keeps its own.
+ */
+public class StatReader {
+
+	private byte[] buffer = new byte[4096];
+	
+	private int length;
+	
+	/**
+	 * Read a file into the buffer, replacing what was there
+	 * @return how many bytes were read
+	 */
+	public int read(File file) throws IOException {
+		length = 0;
+		try(FileInputStream in = new FileInputStream(file)){
+			int read;
+			while((read = in.read(buffer, length, buffer.length - length)) != -1) {
+				length += read;
+				if(length == buffer.length) {
+					byte[] bigger = new byte[buffer.length * 2];
+					System.arraycopy(buffer, 0, bigger, 0, length);
+					buffer = bigger;
+				}
+			}
+		}
+		return length;
+	}
+	
+	/**
+	 * @return the number after a key at the start of a line, or -1 if the key is missing
+	 */
+	public long find(byte[] key) {
+		int line = 0;
+		
+		while(line < length) {
+			if(startsWith(line, key)) {
+				return parseNumber(line + key.length);
+			}
+			line = nextLine(line);
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * @return the sum of the numbers after every occurrence of a key anywhere in the buffer
+	 */
+	public long sum(byte[] key) {
+		long total = 0;
+		for(int i = 0; i + key.length <= length;i++) {
+			if(startsWith(i, key)) {
+				total += Math.max(0, parseNumber(i + key.length));
+				i += key.length;
+			}
+		}
+		return total;
+	}
+	
+	/**
+	 * @return the number at the start of the buffer, or -1 if there is none (cgroup v2 writes "max")
+	 */
+	public long parseNumber() {
+		return parseNumber(0);
+	}
+	
+	/**
+	 * Parse the number at an offset, skipping spaces before it
+	 * @return the number, or -1 if there is none
+	 */
+	public long parseNumber(int offset) {
+		int i = skip(offset, (byte) ' ');
+		if(i >= length || buffer[i] < '0' || buffer[i] > '9') {
+			return -1;
+		}
+		long value = 0;
+		while(i < length && buffer[i] >= '0' && buffer[i] <= '9') {
+			value = value * 10 + (buffer[i++] - '0');
+		}
+		return value;
+	}
+	
+	/**
+	 * @return the offset of the next number after an offset, or the length if there is none
+	 */
+	public int nextNumber(int offset) {
+		int i = offset;
+		while(i < length && buffer[i] >= '0' && buffer[i] <= '9') {
+			i++;
+		}
+		while(i < length && (buffer[i] < '0' || buffer[i] > '9')) {
+			if(buffer[i] == '\n') {
+				return length;
+			}
+			i++;
+		}
+		return i;
+	}
+	
+	/**
+	 * @return the offset of the first byte after the next newline
+	 */
+	public int nextLine(int offset) {
+		int i = offset;
+		while(i < length && buffer[i] != '\n') {
+			i++;
+		}
+		return i + 1;
+	}
+	
+	/**
+	 * @return the offset of a byte in a line, or -1 if the line does not have it
+	 */
+	public int indexOf(int offset, byte b) {
+		for(int i = offset; i < length && buffer[i] != '\n';i++) {
+			if(buffer[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	public boolean startsWith(int offset, byte[] key) {
+		if(offset + key.length > length) {
+			return false;
+		}
+		for(int i = 0; i < key.length;i++) {
+			if(buffer[offset + i] != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private int skip(int offset, byte b) {
+		int i = offset;
+		while(i < length && buffer[i] == b) {
+			i++;
+		}
+		return i;
+	}
+	
+	public byte get(int offset) {
+		return buffer[offset];
+	}
+	
+	public int length() {
+		return length;
+	}
+	
+}
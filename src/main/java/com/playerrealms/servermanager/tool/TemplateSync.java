@@ -0,0 +1,169 @@
+package com.playerrealms.servermanager.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Lays template folders (commons, server types) over server folders, writing only what changed.
+ * The server jar and the plugin jars are never written by a running server, so they are hardlinked to the
+ * template instead of copied. Templates must be replaced by writing a new file and renaming it over the old one,
+ * never in place, or linked servers would see the change. The same goes for anything writing into a server folder.
+ * Other files are always copied, and a copy replaces the old file instead of writing through it.
+ */
+public class TemplateSync {
+
+	private final Map<String, TemplateFile> manifest = new ConcurrentHashMap<>();
+	
+	private final boolean hardlinks;
+	
+	private final Logger logger;
+	
+	/**
+	 * @param hardlinks true to hardlink jars, false to always copy
+	 */
+	public TemplateSync(boolean hardlinks, Logger logger) {
+		this.hardlinks = hardlinks;
+		this.logger = logger;
+	}
+	
+	/**
+	 * Copy every file of a template into a folder, skipping files that are already up to date.
+	 * Files in the folder that are not in the template are left alone.
+	 * @return how many files were written
+	 */
+	public int sync(File template, File folder) throws IOException {
+		Path source = template.toPath();
+		Path target = folder.toPath();
+		
+		int[] written = new int[2];
+		
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if(attrs.isRegularFile()) {
+					String path = source.relativize(file).toString().replace(File.separatorChar, '/');
+					if(syncFile(file.toFile(), target.resolve(path).toFile(), path)) {
+						written[0]++;
+					}else {
+						written[1]++;
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		
+		logger.info("Synced "+template+" to "+folder+", "+written[0]+" written, "+written[1]+" up to date");
+		
+		return written[0];
+	}
+	
+	/**
+	 * Make a file match its template file
+	 * @param path where the target is in the server folder, separated by /
+	 * @return true if the file was written, false if it was up to date
+	 */
+	public boolean syncFile(File source, File target, String path) throws IOException {
+		TemplateFile template = describe(source);
+		
+		boolean link = hardlinks && isImmutable(path);
+		
+		if(target.isFile() && target.length() == template.size) {
+			if(link) {
+				if(Files.isSameFile(source.toPath(), target.toPath())) {
+					return false;
+				}
+			}else if(Files.isSameFile(source.toPath(), target.toPath())) {
+				//Linked by an older version, the server would write into the template
+			}else if(target.lastModified() == template.mtime) {
+				return false;
+			}else if(FileUtils.computeMD5(target).equals(template.getHash(source))) {
+				target.setLastModified(template.mtime);
+				return false;
+			}
+		}
+		
+		if(link && link(source, target)) {
+			return true;
+		}
+		
+		//Replaces the old file rather than writing into it, it may still be linked to a template
+		Files.deleteIfExists(target.toPath());
+		Files.copy(source.toPath(), target.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+		
+		return true;
+	}
+	
+	private boolean link(File source, File target) {
+		try {
+			Files.deleteIfExists(target.toPath());
+			Files.createLink(target.toPath(), source.toPath());
+			return true;
+		} catch (IOException | UnsupportedOperationException e) {
+			//Different file system, fall back to a copy
+			return false;
+		}
+	}
+	
+	private TemplateFile describe(File source) {
+		long size = source.length();
+		long mtime = source.lastModified();
+		
+		return manifest.compute(source.getAbsolutePath(), (path, old) -> {
+			if(old != null && old.size == size && old.mtime == mtime) {
+				return old;
+			}
+			return new TemplateFile(size, mtime);
+		});
+	}
+	
+	/**
+	 * @param path where the file is in the server folder, separated by /
+	 * @return true if servers never write to this file, so it can be shared with the template.
+	 * Only the server jar and the jars directly in plugins, plugins keep their data in other files
+	 */
+	public static boolean isImmutable(String path) {
+		if(!path.endsWith(".jar")) {
+			return false;
+		}
+		if(path.startsWith("plugins/")) {
+			path = path.substring("plugins/".length());
+		}
+		return path.indexOf('/') == -1;
+	}
+	
+	private static class TemplateFile {
+		
+		private final long size, mtime;
+		
+		private volatile String hash;
+		
+		public TemplateFile(long size, long mtime) {
+			this.size = size;
+			this.mtime = mtime;
+		}
+		
+		public String getHash(File source) throws IOException {
+			if(hash == null) {
+				hash = FileUtils.computeMD5(source);
+			}
+			return hash;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,122 @@
+package com.playerrealms.servermanager.tool;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes the threads blocking work (MongoDB, GridFS, Redis, server requests) runs on.
+ * When virtual threads are turned on and the JVM has them (21 or newer) they are used instead of
+ * platform threads. The code is still built for Java 8, so virtual threads are made through reflection.
+ */
+public final class Threads {
+
+	private static final Method OF_VIRTUAL, NAME, FACTORY;
+	
+	static {
+		Method ofVirtual = null, name = null, factory = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class, long.class);
+			factory = builder.getMethod("factory");
+		} catch (ClassNotFoundException | NoSuchMethodException e) {
+			//Older JVM
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		FACTORY = factory;
+	}
+	
+	private static volatile boolean virtual;
+	
+	private Threads() {}
+	
+	/**
+	 * @return true if this JVM can make virtual threads
+	 */
+	public static boolean isVirtualSupported() {
+		return OF_VIRTUAL != null;
+	}
+	
+	/**
+	 * Turn virtual threads on or off for threads made after this call
+	 * @return true if virtual threads are now used
+	 */
+	public static boolean setVirtual(boolean enabled) {
+		virtual = enabled && isVirtualSupported();
+		return virtual;
+	}
+	
+	public static boolean isVirtual() {
+		return virtual;
+	}
+	
+	/**
+	 * @param name threads are called name-1, name-2...
+	 * @param daemon only used for platform threads, virtual threads are always daemon
+	 */
+	public static ThreadFactory factory(String name, boolean daemon) {
+		if(virtual) {
+			try {
+				Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name+"-", 1L);
+				return (ThreadFactory) FACTORY.invoke(builder);
+			} catch (ReflectiveOperationException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		AtomicInteger count = new AtomicInteger();
+		
+		return r -> {
+			Thread t = new Thread(r);
+			t.setName(name+"-"+count.incrementAndGet());
+			t.setDaemon(daemon);
+			return t;
+		};
+	}
+	
+	/**
+	 * Make the executor blocking requests run on. Platform threads are pooled, virtual threads
+	 * are cheap enough to start one per task so requests are not capped by a pool size.
+	 * @param platformThreads size of the pool when virtual threads are off
+	 * @param virtualLimit how many tasks may run at once on virtual threads, 0 for no limit
+	 */
+	public static Executor workers(String name, int platformThreads, int virtualLimit) {
+		if(!virtual) {
+			return Executors.newFixedThreadPool(Math.max(1, platformThreads), factory(name, true));
+		}
+		
+		ThreadFactory factory = factory(name, true);
+		
+		if(virtualLimit <= 0) {
+			return task -> factory.newThread(task).start();
+		}
+		
+		Semaphore permits = new Semaphore(virtualLimit);
+		
+		//The new thread waits for its permit, so whoever submits is never blocked
+		return task -> factory.newThread(() -> {
+			permits.acquireUninterruptibly();
+			try {
+				task.run();
+			}finally {
+				permits.release();
+			}
+		}).start();
+	}
+	
+	/**
+	 * Start a daemon thread
+	 */
+	public static Thread start(String name, Runnable run) {
+		Thread t = factory(name, true).newThread(run);
+		t.setName(name);
+		t.start();
+		return t;
+	}
+	
+}
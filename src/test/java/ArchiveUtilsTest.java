@@ -0,0 +1,219 @@
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.playerrealms.servermanager.snapshot.SnapshotFilter;
+import com.playerrealms.servermanager.tool.ArchiveUtils;
+import com.playerrealms.servermanager.tool.ReadAheadInputStream;
+
+public class ArchiveUtilsTest {
+
+	private File root, folder;
+	
+	private Map<String, byte[]> files;
+	
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("archiveutils").toFile();
+		folder = new File(root, "server");
+		files = new HashMap<>();
+		
+		byte[] region = new byte[300 * 1024];
+		new Random(2).nextBytes(region);
+		
+		write("world/region/r.0.0.mca", region);
+		write("world/level.dat", "level".getBytes());
+		write("server.properties", "motd=hi\n".getBytes());
+		write("empty.txt", new byte[0]);
+		write("logs/latest.log", "log".getBytes());
+		new File(folder, "world/data").mkdirs();
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(root);
+	}
+	
+	@Test
+	public void testPack() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ArchiveUtils.pack(folder, out);
+		
+		Map<String, byte[]> read = read(out.toByteArray());
+		
+		for(Map.Entry<String, byte[]> file : files.entrySet()) {
+			assertArrayEquals(file.getKey(), file.getValue(), read.get(file.getKey()));
+		}
+		assertTrue(read.containsKey("world/data/"));
+	}
+	
+	@Test
+	public void testPackStored() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ArchiveUtils.pack(folder, out, 0, new SnapshotFilter(SnapshotFilter.DEFAULT_EXCLUDES, Collections.<String>emptyList()));
+		
+		Map<String, byte[]> read = read(out.toByteArray());
+		
+		assertArrayEquals(files.get("world/region/r.0.0.mca"), read.get("world/region/r.0.0.mca"));
+		assertFalse(read.containsKey("logs/"));
+		assertFalse(read.containsKey("logs/latest.log"));
+	}
+	
+	@Test
+	public void testShield() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		boolean[] closed = new boolean[1];
+		
+		OutputStream target = new OutputStream() {
+			@Override
+			public void write(int b) {
+				out.write(b);
+			}
+			
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+		
+		try(OutputStream shielded = ArchiveUtils.shield(target)){
+			ArchiveUtils.pack(folder, shielded);
+		}
+		
+		//Still open so the caller can abort the upload
+		assertFalse(closed[0]);
+		assertArrayEquals(files.get("server.properties"), read(out.toByteArray()).get("server.properties"));
+	}
+	
+	@Test
+	public void testUnpack() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ArchiveUtils.pack(folder, out);
+		
+		File target = new File(root, "restored");
+		
+		try(InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(out.toByteArray()), 16 * 1024, 4, "test")){
+			ArchiveUtils.unpack(in, target);
+		}
+		
+		for(Map.Entry<String, byte[]> file : files.entrySet()) {
+			assertArrayEquals(file.getKey(), file.getValue(), Files.readAllBytes(new File(target, file.getKey()).toPath()));
+		}
+		assertTrue(new File(target, "world/data").isDirectory());
+		assertFalse(new File(target, "world/level.dat.unpack").exists());
+	}
+	
+	@Test
+	public void testUnpackReplacesLink() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ArchiveUtils.pack(folder, out);
+		
+		File template = new File(root, "template.properties");
+		Files.write(template.toPath(), "motd=template\n".getBytes());
+		
+		File target = new File(root, "restored");
+		target.mkdirs();
+		Files.createLink(new File(target, "server.properties").toPath(), template.toPath());
+		
+		ArchiveUtils.unpack(new ByteArrayInputStream(out.toByteArray()), target);
+		
+		assertArrayEquals(files.get("server.properties"), Files.readAllBytes(new File(target, "server.properties").toPath()));
+		assertArrayEquals("motd=template\n".getBytes(), Files.readAllBytes(template.toPath()));
+	}
+	
+	@Test
+	public void testZipSlip() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		try(ZipOutputStream zos = new ZipOutputStream(out)){
+			zos.putNextEntry(new ZipEntry("ok.txt"));
+			zos.write("ok".getBytes());
+			zos.closeEntry();
+			zos.putNextEntry(new ZipEntry("../evil.txt"));
+			zos.write("evil".getBytes());
+			zos.closeEntry();
+		}
+		
+		File target = new File(root, "restored");
+		
+		try {
+			ArchiveUtils.unpack(new ByteArrayInputStream(out.toByteArray()), target);
+			fail("Entry outside of the folder was extracted");
+		}catch(ZipException e) {
+			
+		}
+		
+		assertFalse(new File(root, "evil.txt").exists());
+		assertTrue(new File(target, "ok.txt").exists());
+	}
+	
+	@Test
+	public void testZipSlipSibling() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		//Shares the prefix of the target folder name
+		try(ZipOutputStream zos = new ZipOutputStream(out)){
+			zos.putNextEntry(new ZipEntry("../restored2/evil.txt"));
+			zos.write("evil".getBytes());
+			zos.closeEntry();
+		}
+		
+		try {
+			ArchiveUtils.unpack(new ByteArrayInputStream(out.toByteArray()), new File(root, "restored"));
+			fail("Entry outside of the folder was extracted");
+		}catch(ZipException e) {
+			
+		}
+		
+		assertFalse(new File(root, "restored2").exists());
+	}
+	
+	private static Map<String, byte[]> read(byte[] zip) throws IOException {
+		Map<String, byte[]> read = new HashMap<>();
+		
+		try(ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))){
+			ZipEntry entry;
+			while((entry = in.getNextEntry()) != null) {
+				read.put(entry.getName(), readAll(in));
+			}
+		}
+		
+		return read;
+	}
+	
+	private void write(String path, byte[] data) throws IOException {
+		File file = new File(folder, path);
+		file.getParentFile().mkdirs();
+		try(FileOutputStream out = new FileOutputStream(file)){
+			out.write(data);
+		}
+		files.put(path, data);
+	}
+	
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ArchiveUtils.copy(in, out, new byte[8192]);
+		return out.toByteArray();
+	}
+	
+}
@@ -0,0 +1,58 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.playerrealms.servermanager.resource.CpuAllocator;
+
+public class CpuAllocatorTest {
+
+	@Test
+	public void testAllocate() {
+		CpuAllocator cpus = new CpuAllocator(1, 8);
+		
+		assertEquals("1-2", cpus.allocate("a", 2));
+		assertEquals("3-4", cpus.allocate("b", 2));
+		
+		//Same slice for a server that already has one
+		assertEquals("1-2", cpus.allocate("A", 4));
+		assertEquals("1-2", cpus.getSlice("a"));
+		
+		//Core 0 is reserved, a slice bigger than the host is cut down
+		assertEquals("1-7", cpus.allocate("c", 16));
+		assertArrayEquals(new int[] {0, 2, 2, 2, 2, 1, 1, 1}, cpus.getLoad());
+	}
+	
+	@Test
+	public void testShareWhenFull() {
+		CpuAllocator cpus = new CpuAllocator(0, 4);
+		
+		assertEquals("0-1", cpus.allocate("a", 2));
+		assertEquals("2-3", cpus.allocate("b", 2));
+		
+		//Nothing free, goes where the least sharing is
+		assertEquals("0-1", cpus.allocate("c", 2));
+		assertArrayEquals(new int[] {2, 2, 1, 1}, cpus.getLoad());
+	}
+	
+	@Test
+	public void testRebalance() {
+		CpuAllocator cpus = new CpuAllocator(0, 4);
+		
+		cpus.allocate("a", 2);
+		cpus.allocate("b", 2);
+		cpus.allocate("c", 2);
+		
+		cpus.release("b");
+		
+		//a moves into the space b left instead of sharing with c
+		assertEquals("2-3", cpus.getSlice("a"));
+		assertEquals("0-1", cpus.getSlice("c"));
+		assertNull(cpus.getSlice("b"));
+		assertArrayEquals(new int[] {1, 1, 1, 1}, cpus.getLoad());
+		
+		//Releasing a server without a slice changes nothing
+		cpus.release("b");
+		assertArrayEquals(new int[] {1, 1, 1, 1}, cpus.getLoad());
+	}
+	
+}
@@ -0,0 +1,107 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.playerrealms.servermanager.snapshot.FolderCache;
+
+public class FolderCacheTest {
+
+	private static final Logger LOGGER = Logger.getLogger("FolderCacheTest");
+	
+	private File root, cacheRoot;
+	
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("foldercache").toFile();
+		cacheRoot = new File(root, "cache");
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(root);
+	}
+	
+	@Test
+	public void testStoreAndTake() throws IOException {
+		FolderCache cache = new FolderCache(cacheRoot, 1000, LOGGER);
+		
+		File folder = server("Hub", 100);
+		
+		assertTrue(cache.store("Hub", folder, "5f1e"));
+		assertFalse(folder.exists());
+		assertEquals(1, cache.getCount());
+		assertEquals(100, cache.getTotalSize());
+		
+		File target = new File(root, "servers/hub");
+		
+		assertEquals("5f1e", cache.take("HUB", target));
+		assertTrue(new File(target, "world/level.dat").isFile());
+		assertEquals(0, cache.getCount());
+		assertEquals(0, cache.getTotalSize());
+		
+		assertNull(cache.take("hub", new File(root, "servers/again")));
+	}
+	
+	@Test
+	public void testEvict() throws IOException {
+		FolderCache cache = new FolderCache(cacheRoot, 250, LOGGER);
+		
+		assertTrue(cache.store("a", server("a", 100), "1"));
+		assertTrue(cache.store("b", server("b", 100), "2"));
+		
+		//Using a makes b the least recently used
+		assertEquals("1", cache.take("a", new File(root, "servers/a")));
+		assertTrue(cache.store("a", new File(root, "servers/a"), "3"));
+		assertTrue(cache.store("c", server("c", 100), "4"));
+		
+		assertEquals(2, cache.getCount());
+		assertNull(cache.take("b", new File(root, "servers/b2")));
+		assertEquals("3", cache.take("a", new File(root, "servers/a2")));
+		
+		//Too big to ever fit
+		File big = server("big", 300);
+		assertFalse(cache.store("big", big, "5"));
+		assertTrue(big.exists());
+	}
+	
+	@Test
+	public void testReload() throws IOException {
+		FolderCache cache = new FolderCache(cacheRoot, 1000, LOGGER);
+		
+		assertTrue(cache.store("a", server("a", 100), "6a"));
+		
+		//Left over from before snapshot ids, its number must not be taken for an id
+		File old = server("old", 100);
+		assertTrue(old.renameTo(new File(cacheRoot, "old")));
+		Files.write(new File(cacheRoot, "old.version").toPath(), "12".getBytes(StandardCharsets.UTF_8));
+		
+		cache = new FolderCache(cacheRoot, 1000, LOGGER);
+		
+		assertEquals(1, cache.getCount());
+		assertFalse(new File(cacheRoot, "old").exists());
+		assertFalse(new File(cacheRoot, "old.version").exists());
+		assertNull(cache.take("old", new File(root, "servers/old")));
+		assertEquals("6a", cache.take("a", new File(root, "servers/a")));
+	}
+	
+	private File server(String name, int size) throws IOException {
+		File folder = new File(root, "servers/"+name);
+		File level = new File(folder, "world/level.dat");
+		level.getParentFile().mkdirs();
+		try(FileOutputStream out = new FileOutputStream(level)){
+			out.write(new byte[size]);
+		}
+		return folder;
+	}
+	
+}
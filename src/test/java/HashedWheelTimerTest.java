@@ -0,0 +1,100 @@
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.playerrealms.servermanager.tool.HashedWheelTimer;
+
+public class HashedWheelTimerTest {
+
+	@Test
+	public void testFires() throws InterruptedException {
+		HashedWheelTimer timer = new HashedWheelTimer("Test", 10, TimeUnit.MILLISECONDS, 8);
+		
+		CountDownLatch latch = new CountDownLatch(1);
+		long start = System.nanoTime();
+		
+		timer.schedule(latch::countDown, 100, TimeUnit.MILLISECONDS);
+		
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		
+		assertTrue("Fired after "+elapsed+"ms", elapsed >= 100);
+		assertEquals(0, timer.getPendingCount());
+		
+		timer.stop();
+	}
+	
+	@Test
+	public void testCancel() throws InterruptedException {
+		HashedWheelTimer timer = new HashedWheelTimer("Test", 10, TimeUnit.MILLISECONDS, 8);
+		
+		AtomicInteger fired = new AtomicInteger();
+		
+		HashedWheelTimer.Timeout timeout = timer.schedule(fired::incrementAndGet, 50, TimeUnit.MILLISECONDS);
+		
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+		assertEquals(0, timer.getPendingCount());
+		
+		Thread.sleep(150);
+		
+		assertEquals(0, fired.get());
+		assertFalse(timeout.isExpired());
+		
+		timer.stop();
+	}
+	
+	@Test
+	public void testOrderAcrossRounds() throws InterruptedException {
+		//Wheel of 4 ticks of 10ms, so these deadlines wrap around it several times
+		HashedWheelTimer timer = new HashedWheelTimer("Test", 10, TimeUnit.MILLISECONDS, 4);
+		
+		CountDownLatch latch = new CountDownLatch(3);
+		long[] fired = new long[3];
+		long start = System.nanoTime();
+		
+		for(int i = 0; i < 3;i++) {
+			int index = i;
+			timer.schedule(() -> {
+				fired[index] = System.nanoTime() - start;
+				latch.countDown();
+			}, 60 + i * 70, TimeUnit.MILLISECONDS);
+		}
+		
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		
+		for(int i = 0; i < 3;i++) {
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(fired[i]) >= 60 + i * 70);
+		}
+		assertTrue(fired[0] < fired[1] && fired[1] < fired[2]);
+		
+		timer.stop();
+	}
+	
+	@Test
+	public void testReschedule() throws InterruptedException {
+		HashedWheelTimer timer = new HashedWheelTimer("Test", 10, TimeUnit.MILLISECONDS, 8);
+		
+		CountDownLatch latch = new CountDownLatch(3);
+		
+		Runnable[] task = new Runnable[1];
+		task[0] = () -> {
+			latch.countDown();
+			if(latch.getCount() > 0) {
+				timer.schedule(task[0], 20, TimeUnit.MILLISECONDS);
+			}
+		};
+		
+		timer.schedule(task[0], 20, TimeUnit.MILLISECONDS);
+		
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		
+		timer.stop();
+	}
+
+}
@@ -0,0 +1,101 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.playerrealms.servermanager.tool.KeyedExecutor;
+
+public class KeyedExecutorTest {
+
+	private ExecutorService workers;
+	
+	@Before
+	public void setUp() {
+		workers = Executors.newFixedThreadPool(4);
+	}
+	
+	@After
+	public void tearDown() {
+		workers.shutdownNow();
+	}
+	
+	@Test(timeout = 5000)
+	public void testOrder() throws InterruptedException {
+		KeyedExecutor executor = new KeyedExecutor(workers, 100);
+		
+		List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch done = new CountDownLatch(50);
+		
+		for(int i = 0; i < 50;i++) {
+			int n = i;
+			//Keys ignore case, these all run one at a time
+			assertTrue(executor.submit(i % 2 == 0 ? "server" : "SERVER", () -> {
+				order.add(n);
+				done.countDown();
+			}));
+		}
+		
+		done.await();
+		
+		for(int i = 0; i < 50;i++) {
+			assertEquals(Integer.valueOf(i), order.get(i));
+		}
+	}
+	
+	@Test(timeout = 5000)
+	public void testMaxQueued() throws InterruptedException {
+		KeyedExecutor executor = new KeyedExecutor(workers, 1);
+		
+		CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1), done = new CountDownLatch(3);
+		
+		assertTrue(executor.submit("a", () -> {
+			started.countDown();
+			await(release);
+			done.countDown();
+		}));
+		started.await();
+		
+		assertTrue(executor.submit("a", done::countDown));
+		assertFalse(executor.submit("a", done::countDown));
+		assertEquals(1, executor.getRejectedCount());
+		assertEquals(1, executor.getQueueDepth());
+		assertTrue(executor.isBusy("A"));
+		
+		//Other keys are not held up
+		assertTrue(executor.submit("b", done::countDown));
+		
+		release.countDown();
+		done.await();
+		
+		assertEquals(0, executor.getQueueDepth());
+	}
+	
+	@Test
+	public void testShutdown() {
+		KeyedExecutor executor = new KeyedExecutor(workers, 1);
+		
+		workers.shutdown();
+		
+		assertFalse(executor.submit("a", () -> {}));
+		assertFalse(executor.isBusy("a"));
+		assertEquals(1, executor.getRejectedCount());
+	}
+	
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+}
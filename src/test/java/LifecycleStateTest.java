@@ -0,0 +1,47 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.playerrealms.common.ServerStatus;
+import com.playerrealms.servermanager.LifecycleState;
+
+public class LifecycleStateTest {
+
+	@Test
+	public void testStartAndStop() {
+		assertTrue(LifecycleState.OFFLINE.canMoveTo(LifecycleState.DOWNLOADING));
+		assertTrue(LifecycleState.DOWNLOADING.canMoveTo(LifecycleState.STARTING));
+		assertTrue(LifecycleState.STARTING.canMoveTo(LifecycleState.ONLINE));
+		assertTrue(LifecycleState.ONLINE.canMoveTo(LifecycleState.STOPPING));
+		assertTrue(LifecycleState.STOPPING.canMoveTo(LifecycleState.UPLOADING));
+		assertTrue(LifecycleState.UPLOADING.canMoveTo(LifecycleState.OFFLINE));
+	}
+
+	@Test
+	public void testOnlyOneStart() {
+		//A second start request must not get past a server that is already downloading
+		for(LifecycleState state : LifecycleState.values()) {
+			assertEquals(state == LifecycleState.OFFLINE, state.canMoveTo(LifecycleState.DOWNLOADING));
+		}
+
+		assertFalse(LifecycleState.ONLINE.canMoveTo(LifecycleState.OFFLINE));
+		assertFalse(LifecycleState.STOPPING.canMoveTo(LifecycleState.OFFLINE));
+	}
+
+	@Test
+	public void testFailedStart() {
+		//OFFLINE is only reached from a start that failed or a finished upload
+		for(LifecycleState state : LifecycleState.values()) {
+			boolean allowed = state == LifecycleState.DOWNLOADING || state == LifecycleState.STARTING || state == LifecycleState.UPLOADING;
+			assertEquals(state.name(), allowed, state.canMoveTo(LifecycleState.OFFLINE));
+		}
+	}
+
+	@Test
+	public void testStatus() {
+		assertEquals(ServerStatus.STARTING, LifecycleState.DOWNLOADING.getStatus());
+		assertEquals(ServerStatus.STOPPING, LifecycleState.UPLOADING.getStatus());
+		assertEquals(ServerStatus.OFFLINE, LifecycleState.OFFLINE.getStatus());
+	}
+
+}
@@ -0,0 +1,30 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.playerrealms.servermanager.redis.ManagerPresence;
+
+public class ManagerPresenceTest {
+
+	@Test
+	public void testMongoDue() {
+		ManagerPresence presence = new ManagerPresence("127.0.0.1", 5, 100, 60000);
+
+		assertEquals("manager:127.0.0.1", presence.getKey());
+
+		//Nothing written yet
+		assertTrue(presence.isMongoDue(1000, true, 0));
+
+		presence.onMongoWritten(1000, true, 0);
+
+		assertFalse(presence.isMongoDue(1000, true, 1000));
+		assertFalse(presence.isMongoDue(950, true, 1000));
+		assertTrue(presence.isMongoDue(900, true, 1000));
+		assertTrue(presence.isMongoDue(1100, true, 1000));
+		assertTrue(presence.isMongoDue(1000, false, 1000));
+
+		//Written again once it gets old even if nothing changed
+		assertTrue(presence.isMongoDue(1000, true, 60000));
+	}
+
+}
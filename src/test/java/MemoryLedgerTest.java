@@ -0,0 +1,74 @@
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.playerrealms.servermanager.resource.MemoryLedger;
+
+public class MemoryLedgerTest {
+
+	@Test
+	public void testReserve() {
+		MemoryLedger ledger = new MemoryLedger(() -> 1000, () -> 1000, 100, 1, 0);
+		
+		assertEquals(900, ledger.getCommittable());
+		assertTrue(ledger.reserve("a", 500));
+		assertTrue(ledger.reserve("b", 400));
+		assertFalse(ledger.reserve("c", 1));
+		assertEquals(900, ledger.getCommitted());
+		assertEquals(0, ledger.getFree());
+		
+		//Asking again for the same or less keeps the reservation
+		assertTrue(ledger.reserve("A", 300));
+		assertEquals(Long.valueOf(500), ledger.getReservations().get("a"));
+		
+		//Growing needs room for the difference only
+		assertFalse(ledger.reserve("a", 501));
+		
+		ledger.release("A");
+		assertEquals(400, ledger.getCommitted());
+		assertTrue(ledger.reserve("a", 500));
+	}
+	
+	@Test
+	public void testOvercommit() {
+		MemoryLedger ledger = new MemoryLedger(() -> 1000, () -> 1000, 100, 1.5, 0);
+		
+		assertEquals(1400, ledger.getCommittable());
+		assertTrue(ledger.reserve("a", 800));
+		assertTrue(ledger.reserve("b", 600));
+		assertFalse(ledger.reserve("c", 1));
+	}
+	
+	@Test
+	public void testHeadroom() {
+		AtomicLong available = new AtomicLong(300);
+		MemoryLedger ledger = new MemoryLedger(() -> 1000, available::get, 100, 2, 0);
+		
+		//Plenty to reserve, but only 200 actually free above the headroom
+		assertEquals(200, ledger.getFree());
+		assertFalse(ledger.reserve("a", 201));
+		assertTrue(ledger.reserve("a", 200));
+		
+		available.set(50);
+		assertEquals(0, ledger.getFree());
+		assertFalse(ledger.reserve("b", 1));
+	}
+	
+	@Test
+	public void testWarmup() throws InterruptedException {
+		MemoryLedger ledger = new MemoryLedger(() -> 1000, () -> 1000, 100, 1, 200);
+		
+		//A server that just started has not used its memory yet, it still counts against free memory
+		assertTrue(ledger.reserve("a", 300));
+		assertEquals(700, ledger.getObservedFree());
+		assertEquals(600, ledger.getFree());
+		
+		Thread.sleep(300);
+		
+		assertEquals(1000, ledger.getObservedFree());
+		assertEquals(600, ledger.getFree());
+	}
+	
+}
@@ -0,0 +1,108 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.playerrealms.servermanager.tool.MemorySampler;
+
+public class MemorySamplerTest {
+
+	private static final String MEMINFO = 
+			"MemTotal:       16303428 kB\n" + 
+			"MemFree:          917364 kB\n" + 
+			"MemAvailable:    9802276 kB\n" + 
+			"Buffers:          593232 kB\n" + 
+			"Cached:          8126152 kB\n" + 
+			"SwapCached:            0 kB\n";
+	
+	private File root;
+	
+	@Before
+	public void setup() throws IOException {
+		root = File.createTempFile("meminfo", "");
+		root.delete();
+		new File(root, "proc").mkdirs();
+		new File(root, "cgroup/memory").mkdirs();
+	}
+	
+	@After
+	public void cleanup() {
+		delete(root);
+	}
+	
+	@Test
+	public void testMeminfo() throws IOException {
+		write("proc/meminfo", MEMINFO);
+		
+		MemorySampler.Sample sample = sampler().sample();
+		
+		assertEquals(16303428L * 1024, sample.getTotal());
+		assertEquals(9802276L * 1024, sample.getAvailable());
+	}
+	
+	@Test
+	public void testNoMemAvailable() throws IOException {
+		write("proc/meminfo", MEMINFO.replace("MemAvailable:    9802276 kB\n", ""));
+		
+		assertEquals((917364L + 593232L + 8126152L) * 1024, sampler().sample().getAvailable());
+	}
+	
+	@Test
+	public void testCgroupV2() throws IOException {
+		write("proc/meminfo", MEMINFO);
+		write("cgroup/memory.max", "4294967296\n");
+		write("cgroup/memory.current", "1073741824\n");
+		
+		MemorySampler.Sample sample = sampler().sample();
+		
+		assertEquals(4294967296L, sample.getTotal());
+		assertEquals(3221225472L, sample.getAvailable());
+	}
+	
+	@Test
+	public void testCgroupUnlimited() throws IOException {
+		write("proc/meminfo", MEMINFO);
+		write("cgroup/memory.max", "max\n");
+		write("cgroup/memory/memory.limit_in_bytes", "1024\n");
+		
+		assertEquals(16303428L * 1024, sampler().sample().getTotal());
+	}
+	
+	@Test
+	public void testCgroupV1() throws IOException {
+		write("proc/meminfo", MEMINFO);
+		write("cgroup/memory/memory.limit_in_bytes", "2147483648\n");
+		write("cgroup/memory/memory.usage_in_bytes", "2147483000\n");
+		
+		MemorySampler.Sample sample = sampler().sample();
+		
+		assertEquals(2147483648L, sample.getTotal());
+		assertEquals(648L, sample.getAvailable());
+	}
+	
+	private MemorySampler sampler() {
+		return new MemorySampler(new File(root, "proc"), new File(root, "cgroup"));
+	}
+	
+	private void write(String path, String content) throws IOException {
+		try(FileOutputStream out = new FileOutputStream(new File(root, path))){
+			out.write(content.getBytes());
+		}
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
@@ -0,0 +1,160 @@
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.playerrealms.servermanager.snapshot.SnapshotFilter;
+import com.playerrealms.servermanager.tool.ParallelZipWriter;
+
+public class ParallelZipWriterTest {
+
+	private File root, folder;
+	
+	private ForkJoinPool pool;
+	
+	private Map<String, byte[]> files;
+	
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("parallelzip").toFile();
+		folder = new File(root, "server");
+		pool = new ForkJoinPool(2);
+		files = new HashMap<>();
+		
+		Random random = new Random(1);
+		
+		//Several blocks, some that do not compress
+		byte[] region = new byte[700 * 1024];
+		random.nextBytes(region);
+		for(int i = 0; i < region.length / 2;i++) {
+			region[i] = (byte) (i % 7);
+		}
+		
+		write("world/region/r.0.0.mca", region);
+		write("world/level.dat", "level".getBytes());
+		write("server.properties", "motd=hi\n".getBytes());
+		write("empty.txt", new byte[0]);
+		write("logs/latest.log", "log".getBytes());
+		new File(folder, "world/data").mkdirs();
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		pool.shutdown();
+		FileUtils.deleteDirectory(root);
+	}
+	
+	@Test
+	public void testStream() throws IOException {
+		byte[] zip = pack(new ParallelZipWriter(pool, Deflater.DEFAULT_COMPRESSION), null);
+		
+		Map<String, byte[]> read = new HashMap<>();
+		
+		try(ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))){
+			ZipEntry entry;
+			while((entry = in.getNextEntry()) != null) {
+				if(entry.isDirectory()) {
+					read.put(entry.getName(), null);
+				}else {
+					read.put(entry.getName(), readAll(in));
+				}
+			}
+		}
+		
+		assertContent(read);
+		assertTrue(read.containsKey("world/data/"));
+	}
+	
+	@Test
+	public void testCentralDirectory() throws IOException {
+		byte[] zip = pack(new ParallelZipWriter(pool, 1), null);
+		
+		File file = new File(root, "server.zip");
+		Files.write(file.toPath(), zip);
+		
+		Map<String, byte[]> read = new HashMap<>();
+		
+		try(ZipFile zipFile = new ZipFile(file)){
+			for(ZipEntry entry : Collections.list(zipFile.entries())) {
+				if(!entry.isDirectory()) {
+					try(InputStream in = zipFile.getInputStream(entry)){
+						read.put(entry.getName(), readAll(in));
+					}
+					assertEquals(entry.getName(), files.get(entry.getName()).length, entry.getSize());
+				}
+			}
+		}
+		
+		assertContent(read);
+	}
+	
+	@Test
+	public void testFilter() throws IOException {
+		SnapshotFilter filter = new SnapshotFilter(SnapshotFilter.DEFAULT_EXCLUDES, Collections.<String>emptyList());
+		
+		byte[] zip = pack(new ParallelZipWriter(pool, 1), filter);
+		
+		try(ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))){
+			ZipEntry entry;
+			while((entry = in.getNextEntry()) != null) {
+				assertFalse(entry.getName(), entry.getName().startsWith("logs"));
+			}
+		}
+	}
+	
+	private byte[] pack(ParallelZipWriter writer, SnapshotFilter filter) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if(filter == null) {
+			writer.pack(folder, out);
+		}else {
+			writer.pack(folder, out, writer.getLevel(), filter);
+		}
+		return out.toByteArray();
+	}
+	
+	private void assertContent(Map<String, byte[]> read) {
+		for(Map.Entry<String, byte[]> file : files.entrySet()) {
+			assertTrue(file.getKey(), read.containsKey(file.getKey()));
+			assertArrayEquals(file.getKey(), file.getValue(), read.get(file.getKey()));
+		}
+	}
+	
+	private void write(String path, byte[] data) throws IOException {
+		File file = new File(folder, path);
+		file.getParentFile().mkdirs();
+		try(FileOutputStream out = new FileOutputStream(file)){
+			out.write(data);
+		}
+		files.put(path, data);
+	}
+	
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+	
+}
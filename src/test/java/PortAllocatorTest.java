@@ -0,0 +1,78 @@
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import org.junit.Test;
+
+import com.playerrealms.servermanager.resource.PortAllocator;
+
+public class PortAllocatorTest {
+
+	@Test
+	public void testLease() {
+		PortAllocator ports = new PortAllocator(30000, 30002, 1000, false);
+		
+		int a = ports.lease("a");
+		int b = ports.lease("b");
+		
+		assertEquals(a, ports.lease("A"));
+		assertTrue(a != b);
+		assertTrue(ports.isLeased(a));
+		assertEquals(2, ports.getLeasedCount());
+		
+		ports.release("a");
+		
+		assertFalse(ports.isLeased(a));
+		assertEquals(-1, ports.getPort("a"));
+		
+		//Released ports go to the back of the ring
+		assertEquals(30002, ports.lease("c"));
+		assertEquals(a, ports.lease("d"));
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void testExhausted() {
+		PortAllocator ports = new PortAllocator(30000, 30001, 1000, false);
+		
+		ports.lease("a");
+		ports.lease("b");
+		ports.lease("c");
+	}
+	
+	@Test
+	public void testQuarantine() throws InterruptedException {
+		PortAllocator ports = new PortAllocator(30000, 30000, 50, false);
+		
+		ports.lease("a");
+		ports.releaseFailed("a");
+		
+		assertEquals(1, ports.getQuarantinedCount());
+		
+		try {
+			ports.lease("b");
+			fail();
+		}catch(IllegalStateException e) {
+		}
+		
+		Thread.sleep(100);
+		
+		assertEquals(30000, ports.lease("b"));
+		assertEquals(0, ports.getQuarantinedCount());
+	}
+	
+	@Test
+	public void testProbe() throws IOException {
+		try(ServerSocket taken = new ServerSocket(0)){
+			int port = taken.getLocalPort();
+			
+			PortAllocator ports = new PortAllocator(port, port + 10, 60000, true);
+			
+			int leased = ports.lease("a");
+			
+			assertTrue(leased != port);
+			assertTrue(ports.getQuarantinedCount() >= 1);
+		}
+	}
+
+}
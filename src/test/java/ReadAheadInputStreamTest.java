@@ -0,0 +1,50 @@
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import com.playerrealms.servermanager.tool.ReadAheadInputStream;
+
+public class ReadAheadInputStreamTest {
+
+	@Test
+	public void testRead() throws IOException {
+		byte[] data = new byte[10000];
+		for(int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+
+		try(InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), 1024, 2, "Test")){
+			byte[] read = new byte[data.length];
+			int filled = 0;
+			int n;
+			while((n = in.read(read, filled, read.length - filled)) > 0) {
+				filled += n;
+			}
+			assertEquals(data.length, filled);
+			assertArrayEquals(data, read);
+			assertEquals(-1, in.read());
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void testRuntimeException() {
+		InputStream failing = new InputStream() {
+			@Override
+			public int read() {
+				throw new IllegalStateException("socket closed");
+			}
+		};
+
+		try(InputStream in = new ReadAheadInputStream(failing, 16, 2, "Test")){
+			in.read();
+			fail("Expected the reader error");
+		}catch(IOException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+}
@@ -0,0 +1,59 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.playerrealms.servermanager.snapshot.SnapshotFilter;
+
+public class SnapshotFilterTest {
+
+	private static final File MISSING = new File("does-not-exist");
+	
+	@Test
+	public void testDefaults() {
+		SnapshotFilter filter = new SnapshotFilter(SnapshotFilter.DEFAULT_EXCLUDES, Collections.<String>emptyList());
+		
+		assertTrue(filter.accept("world/region/r.0.0.mca", MISSING));
+		assertTrue(filter.accept("server.properties", MISSING));
+		assertFalse(filter.accept("logs", MISSING));
+		assertFalse(filter.accept("logs/latest.log", MISSING));
+		assertFalse(filter.accept("crash-reports/crash.txt", MISSING));
+		assertFalse(filter.accept("usercache.json", MISSING));
+		assertFalse(filter.accept("plugins/Essentials/cache/a.yml", MISSING));
+		assertFalse(filter.accept("session.tmp", MISSING));
+		assertFalse(filter.accept("plugins/Essentials/data.tmp", MISSING));
+	}
+	
+	@Test
+	public void testInclude() {
+		SnapshotFilter filter = new SnapshotFilter(Arrays.asList("logs"), Arrays.asList("logs/keep.log"));
+		
+		assertTrue(filter.accept("logs/keep.log", MISSING));
+		assertFalse(filter.accept("logs/latest.log", MISSING));
+		assertTrue(filter.accept("world/level.dat", MISSING));
+		
+		//The folder is walked for the include but not packed itself
+		assertFalse(filter.accept("logs", MISSING));
+		assertTrue(filter.descend("logs", MISSING));
+	}
+	
+	@Test
+	public void testPrune() {
+		SnapshotFilter filter = new SnapshotFilter(Arrays.asList("plugins", "logs"), Arrays.asList("plugins/*/config.yml"));
+		
+		assertTrue(filter.descend("plugins", MISSING));
+		assertTrue(filter.descend("plugins/Essentials", MISSING));
+		assertFalse(filter.descend("plugins/Essentials/userdata", MISSING));
+		assertFalse(filter.descend("logs", MISSING));
+		assertTrue(filter.accept("plugins/Essentials/config.yml", MISSING));
+		
+		//A rule that can match at any depth keeps every folder walked
+		filter = new SnapshotFilter(Arrays.asList("plugins"), Arrays.asList("**/config.yml"));
+		
+		assertTrue(filter.descend("plugins/Essentials/userdata", MISSING));
+	}
+
+}
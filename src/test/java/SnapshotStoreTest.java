@@ -0,0 +1,301 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.playerrealms.servermanager.codec.AdaptiveLevel;
+import com.playerrealms.servermanager.codec.ArchiveCodecs;
+import com.playerrealms.servermanager.snapshot.SnapshotBackend;
+import com.playerrealms.servermanager.snapshot.SnapshotStore;
+
+public class SnapshotStoreTest {
+
+	private static final Logger LOGGER = Logger.getLogger("SnapshotStoreTest");
+	
+	private File root, folder;
+	
+	private ForkJoinPool pool;
+	
+	private MemoryBackend backend;
+	
+	private SnapshotStore store;
+	
+	private Random random;
+	
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("snapshotstore").toFile();
+		folder = new File(root, "server");
+		pool = new ForkJoinPool(1);
+		backend = new MemoryBackend();
+		store = new SnapshotStore(backend, LOGGER, pool, new AdaptiveLevel(ArchiveCodecs.DEFLATE, 1, false));
+		random = new Random(5);
+		
+		write(folder, "world/region/r.0.0.mca", random(SnapshotStore.CHUNK_SIZE * 2 + 1000));
+		write(folder, "world/level.dat", "level".getBytes());
+		write(folder, "server.properties", "motd=hi\n".getBytes());
+		write(folder, "empty.txt", new byte[0]);
+		new File(folder, "world/data").mkdirs();
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		pool.shutdown();
+		FileUtils.deleteDirectory(root);
+	}
+	
+	@Test
+	public void testRoundTrip() throws IOException {
+		String id = store.upload("Hub", folder);
+		
+		assertEquals(id, store.getSnapshotId("HUB"));
+		//Three chunks of the region, level.dat and server.properties
+		assertEquals(5, backend.blobs.size());
+		
+		File target = new File(root, "restored");
+		
+		assertTrue(store.download("hub", target));
+		assertSame(folder, target);
+		assertTrue(new File(target, "world/data").isDirectory());
+		assertEquals(new File(folder, "world/level.dat").lastModified(), new File(target, "world/level.dat").lastModified());
+		
+		assertFalse(store.download("Lobby", new File(root, "lobby")));
+	}
+	
+	@Test
+	public void testDedupe() throws IOException {
+		//The same content twice is stored once
+		write(folder, "world/region/r.0.1.mca", Files.readAllBytes(new File(folder, "world/region/r.0.0.mca").toPath()));
+		
+		store.upload("Hub", folder);
+		
+		assertEquals(5, backend.blobs.size());
+		assertEquals(5, backend.stored);
+		
+		//Only the changed chunk is stored again
+		byte[] region = Files.readAllBytes(new File(folder, "world/region/r.0.0.mca").toPath());
+		region[SnapshotStore.CHUNK_SIZE + 1] ^= 1;
+		write(folder, "world/region/r.0.0.mca", region);
+		
+		String id = store.upload("Hub", folder);
+		
+		assertEquals(6, backend.stored);
+		assertEquals(2, store.getManifest("Hub").getLong("version").longValue());
+		
+		//A new server with the same files stores nothing
+		assertFalse(id.equals(store.upload("Lobby", folder)));
+		assertEquals(6, backend.stored);
+		
+		File target = new File(root, "restored");
+		store.download("Hub", target);
+		assertSame(folder, target);
+	}
+	
+	@Test
+	public void testReuse() throws IOException {
+		store.upload("Hub", folder);
+		
+		File target = new File(root, "restored");
+		FileUtils.copyDirectory(folder, target);
+		write(target, "server.properties", "motd=changed\n".getBytes());
+		
+		backend.fetched.clear();
+		
+		store.download("Hub", target);
+		
+		assertSame(folder, target);
+		assertEquals(Arrays.asList(SnapshotStore.hash("motd=hi\n".getBytes(), 8)), backend.fetched);
+	}
+	
+	@Test
+	public void testPrune() throws IOException {
+		store.upload("Hub", folder);
+		
+		File target = new File(root, "restored");
+		write(target, "logs/latest.log", "log".getBytes());
+		write(target, "world/session.lock", new byte[1]);
+		
+		store.download("Hub", target, false);
+		assertTrue(new File(target, "logs/latest.log").exists());
+		
+		store.download("Hub", target, true);
+		assertFalse(new File(target, "logs").exists());
+		assertFalse(new File(target, "world/session.lock").exists());
+		assertSame(folder, target);
+	}
+	
+	@Test
+	public void testCorruptBlob() throws IOException {
+		store.upload("Hub", folder);
+		
+		File target = new File(root, "restored");
+		write(target, "server.properties", "motd=old\n".getBytes());
+		
+		//Valid compressed data, but not what the hash says
+		String hash = SnapshotStore.hash("motd=hi\n".getBytes(), 8);
+		backend.blobs.put(hash, backend.blobs.get(SnapshotStore.hash("level".getBytes(), 5)));
+		
+		try {
+			store.download("Hub", target);
+			fail("Corrupt blob was restored");
+		}catch(IOException e) {
+			
+		}
+		
+		assertArrayEquals("motd=old\n".getBytes(), Files.readAllBytes(new File(target, "server.properties").toPath()));
+		assertFalse(new File(target, "server.properties.download").exists());
+	}
+	
+	@Test
+	public void testMissingBlob() throws IOException {
+		store.upload("Hub", folder);
+		
+		backend.blobs.remove(SnapshotStore.hash("level".getBytes(), 5));
+		
+		try {
+			store.download("Hub", new File(root, "restored"));
+			fail("Missing blob was not noticed");
+		}catch(IOException e) {
+			
+		}
+	}
+	
+	@Test
+	public void testCollectGarbage() throws IOException {
+		store.upload("Hub", folder);
+		write(folder, "server.properties", "motd=lobby\n".getBytes());
+		store.upload("Lobby", folder);
+		
+		assertEquals(6, backend.blobs.size());
+		
+		store.delete("Hub");
+		
+		assertEquals(1, store.collectGarbage(0));
+		assertEquals(5, backend.blobs.size());
+		assertTrue(store.download("Lobby", new File(root, "restored")));
+	}
+	
+	private void assertSame(File expected, File actual) throws IOException {
+		for(Object listed : FileUtils.listFiles(expected, null, true)) {
+			File file = (File) listed;
+			String path = expected.toPath().relativize(file.toPath()).toString();
+			assertArrayEquals(path, Files.readAllBytes(file.toPath()), Files.readAllBytes(new File(actual, path).toPath()));
+		}
+		assertEquals(FileUtils.listFiles(expected, null, true).size(), FileUtils.listFiles(actual, null, true).size());
+	}
+	
+	private byte[] random(int size) {
+		byte[] data = new byte[size];
+		random.nextBytes(data);
+		return data;
+	}
+	
+	private static void write(File folder, String path, byte[] data) throws IOException {
+		File file = new File(folder, path);
+		file.getParentFile().mkdirs();
+		long mtime = file.exists() ? file.lastModified() + 2000 : System.currentTimeMillis() - 60000;
+		Files.write(file.toPath(), data);
+		//Changes within the mtime resolution must still be seen
+		file.setLastModified(mtime);
+	}
+	
+	private static class MemoryBackend implements SnapshotBackend {
+		
+		private final Map<String, Document> manifests = new HashMap<>();
+		
+		private final Map<String, Blob> blobs = new HashMap<>();
+		
+		private final Map<String, Long> uploadDates = new HashMap<>();
+		
+		private final List<String> fetched = new ArrayList<>();
+		
+		private int stored;
+		
+		@Override
+		public Document findManifest(String serverName, String... fields) {
+			return manifests.get(serverName.toLowerCase());
+		}
+		
+		@Override
+		public Iterable<Document> findManifests(String... fields) {
+			return new ArrayList<>(manifests.values());
+		}
+		
+		@Override
+		public void saveManifest(String serverName, Document manifest) {
+			manifests.put(serverName.toLowerCase(), manifest);
+		}
+		
+		@Override
+		public void renameManifest(String serverName, String target) {
+			Document manifest = manifests.remove(serverName.toLowerCase());
+			if(manifest != null) {
+				manifests.put(target.toLowerCase(), manifest.append("server_name", target).append("server_name_lower", target.toLowerCase()));
+			}
+		}
+		
+		@Override
+		public void deleteManifest(String serverName) {
+			manifests.remove(serverName.toLowerCase());
+		}
+		
+		@Override
+		public boolean touchBlob(String hash) {
+			if(!blobs.containsKey(hash)) {
+				return false;
+			}
+			uploadDates.put(hash, System.currentTimeMillis());
+			return true;
+		}
+		
+		@Override
+		public void storeBlob(String hash, byte[] data, Document metadata) {
+			blobs.put(hash, new Blob(data, metadata));
+			uploadDates.put(hash, System.currentTimeMillis());
+			stored++;
+		}
+		
+		@Override
+		public Map<String, Blob> fetchBlobs(Collection<String> hashes) {
+			Map<String, Blob> found = new HashMap<>();
+			for(String hash : hashes) {
+				fetched.add(hash);
+				if(blobs.containsKey(hash)) {
+					found.put(hash, blobs.get(hash));
+				}
+			}
+			return found;
+		}
+		
+		@Override
+		public int deleteBlobs(Set<String> referenced, long before) {
+			int deleted = 0;
+			for(String hash : new ArrayList<>(blobs.keySet())) {
+				if(!referenced.contains(hash) && uploadDates.get(hash) <= before) {
+					blobs.remove(hash);
+					deleted++;
+				}
+			}
+			return deleted;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,133 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.playerrealms.servermanager.resource.ServerTelemetry;
+import com.playerrealms.servermanager.resource.TelemetryCollector;
+
+public class TelemetryCollectorTest {
+
+	private static final String NET_DEV = 
+			"Inter-|   Receive                                                |  Transmit\n" + 
+			" face |bytes    packets errs drop fifo frame compressed multicast|bytes    packets errs drop fifo colls carrier compressed\n" + 
+			"    lo:  %d      10    0    0    0     0          0         0  %d      10    0    0    0     0       0          0\n" + 
+			"  eth0: %d      20    0    0    0     0          0         0  %d      20    0    0    0     0       0          0\n";
+	
+	private File root;
+	
+	@Before
+	public void setup() throws IOException {
+		root = File.createTempFile("cgroup", "");
+		root.delete();
+		write("proc/42/environ", "PATH=/bin\0servername=MyRealm\0MAX_MEMORY=1024\0");
+	}
+	
+	@After
+	public void cleanup() {
+		delete(root);
+	}
+	
+	@Test
+	public void testUnified() throws Exception {
+		write("cgroup/cgroup.controllers", "cpu io memory\n");
+		write("cgroup/system.slice/docker-abc.scope/cgroup.procs", "42\n43\n");
+		
+		TelemetryCollector collector = new TelemetryCollector(new File(root, "cgroup"), new File(root, "proc"), 8);
+		
+		writeUnified(1000000, 1000, 0);
+		collector.collect(Arrays.asList("myrealm"));
+		Thread.sleep(100);
+		writeUnified(1100000, 2000, 100000);
+		collector.collect(Arrays.asList("myrealm"));
+		
+		ServerTelemetry telemetry = collector.getTelemetry("MyRealm");
+		
+		assertNotNull(telemetry);
+		assertEquals(1, telemetry.getCount());
+		assertEquals(4096L, telemetry.getLatest(ServerTelemetry.RSS));
+		assertTrue(telemetry.getLatest(ServerTelemetry.CPU) > 0);
+		assertTrue(telemetry.getLatest(ServerTelemetry.DISK) > 0);
+		assertTrue(telemetry.getLatest(ServerTelemetry.NET) > 0);
+		
+		collector.collect(Collections.<String>emptyList());
+		
+		assertNull(collector.getTelemetry("myrealm"));
+	}
+	
+	@Test
+	public void testV1() throws Exception {
+		write("cgroup/memory/docker/abc/cgroup.procs", "42\n");
+		
+		TelemetryCollector collector = new TelemetryCollector(new File(root, "cgroup"), new File(root, "proc"), 8);
+		
+		writeV1(1000000000L, 0);
+		collector.collect(Arrays.asList("myrealm"));
+		Thread.sleep(100);
+		writeV1(1100000000L, 100000);
+		collector.collect(Arrays.asList("myrealm"));
+		
+		ServerTelemetry telemetry = collector.getTelemetry("myrealm");
+		
+		assertEquals(1, telemetry.getCount());
+		assertEquals(8192L, telemetry.getLatest(ServerTelemetry.RSS));
+		assertTrue(telemetry.getLatest(ServerTelemetry.CPU) > 0);
+		assertTrue(telemetry.getLatest(ServerTelemetry.DISK) > 0);
+	}
+	
+	@Test
+	public void testPercentile() {
+		ServerTelemetry telemetry = new ServerTelemetry(4);
+		
+		telemetry.record(0, 0, 0, 0, 0);
+		for(int i = 1; i <= 6;i++) {
+			telemetry.record(i * 1000, 0, i, 0, 0);
+		}
+		
+		assertEquals(4, telemetry.getCount());
+		assertEquals(6L, telemetry.getLatest(ServerTelemetry.RSS));
+		assertEquals(3L, telemetry.getPercentile(ServerTelemetry.RSS, 0));
+		assertEquals(4L, telemetry.getPercentile(ServerTelemetry.RSS, 50));
+		assertEquals(6L, telemetry.getPercentile(ServerTelemetry.RSS, 100));
+	}
+	
+	private void writeUnified(long cpu, long disk, long net) throws IOException {
+		write("cgroup/system.slice/docker-abc.scope/cpu.stat", "usage_usec "+cpu+"\nuser_usec 10\n");
+		write("cgroup/system.slice/docker-abc.scope/memory.stat", "anon 4096\nfile 100\n");
+		write("cgroup/system.slice/docker-abc.scope/io.stat", "8:0 rbytes="+disk+" wbytes="+disk+" rios=1 wios=1\n");
+		write("proc/42/net/dev", String.format(NET_DEV, 999999, 999999, net, net));
+	}
+	
+	private void writeV1(long cpu, long disk) throws IOException {
+		write("cgroup/cpuacct/docker/abc/cpuacct.usage", cpu+"\n");
+		write("cgroup/memory/docker/abc/memory.stat", "rss 1\nrss_huge 0\ntotal_rss 8192\n");
+		write("cgroup/blkio/docker/abc/blkio.throttle.io_service_bytes", "8:0 Read "+disk+"\n8:0 Write 0\nTotal "+disk+"\n");
+		write("proc/42/net/dev", String.format(NET_DEV, 0, 0, 0, 0));
+	}
+	
+	private void write(String path, String content) throws IOException {
+		File file = new File(root, path);
+		file.getParentFile().mkdirs();
+		try(FileOutputStream out = new FileOutputStream(file)){
+			out.write(content.getBytes());
+		}
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
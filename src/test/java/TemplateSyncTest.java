@@ -0,0 +1,105 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.playerrealms.servermanager.tool.TemplateSync;
+
+public class TemplateSyncTest {
+
+	private File root, template, server;
+	
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("templatesync").toFile();
+		template = new File(root, "template");
+		server = new File(root, "server");
+		
+		write(new File(template, "spigot.jar"), "server jar");
+		write(new File(template, "plugins/Core.jar"), "plugin jar");
+		write(new File(template, "plugins/Core/lib/extra.jar"), "plugin data");
+		write(new File(template, "server.properties"), "motd=hi");
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(root);
+	}
+	
+	@Test
+	public void testImmutable() {
+		assertTrue(TemplateSync.isImmutable("spigot.jar"));
+		assertTrue(TemplateSync.isImmutable("plugins/Core.jar"));
+		assertFalse(TemplateSync.isImmutable("plugins/Core/lib/extra.jar"));
+		assertFalse(TemplateSync.isImmutable("libraries/extra.jar"));
+		assertFalse(TemplateSync.isImmutable("server.properties"));
+	}
+	
+	@Test
+	public void testLinkAndCopy() throws IOException {
+		TemplateSync sync = new TemplateSync(true, Logger.getLogger("TemplateSyncTest"));
+		
+		assertEquals(4, sync.sync(template, server));
+		
+		assertTrue(isLinked("spigot.jar"));
+		assertTrue(isLinked("plugins/Core.jar"));
+		assertFalse(isLinked("plugins/Core/lib/extra.jar"));
+		assertFalse(isLinked("server.properties"));
+		assertEquals("motd=hi", read(new File(server, "server.properties")));
+		
+		//Nothing changed
+		assertEquals(0, sync.sync(template, server));
+	}
+	
+	@Test
+	public void testUnlink() throws IOException {
+		//Linked by an older version that linked every file, writing it must not change the template
+		File properties = new File(server, "server.properties");
+		server.mkdirs();
+		Files.createLink(properties.toPath(), new File(template, "server.properties").toPath());
+		
+		TemplateSync sync = new TemplateSync(true, Logger.getLogger("TemplateSyncTest"));
+		sync.sync(template, server);
+		
+		assertFalse(isLinked("server.properties"));
+		
+		write(properties, "changed by the server");
+		
+		assertEquals("motd=hi", read(new File(template, "server.properties")));
+	}
+	
+	@Test
+	public void testNoHardlinks() throws IOException {
+		TemplateSync sync = new TemplateSync(false, Logger.getLogger("TemplateSyncTest"));
+		
+		sync.sync(template, server);
+		
+		assertFalse(isLinked("spigot.jar"));
+		assertEquals("server jar", read(new File(server, "spigot.jar")));
+	}
+	
+	private boolean isLinked(String path) throws IOException {
+		return Files.isSameFile(new File(template, path).toPath(), new File(server, path).toPath());
+	}
+	
+	private static void write(File file, String content) throws IOException {
+		file.getParentFile().mkdirs();
+		try(FileOutputStream out = new FileOutputStream(file)){
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+	
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+	
+}
@@ -0,0 +1,108 @@
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.playerrealms.servermanager.snapshot.UploadPipeline;
+import com.playerrealms.servermanager.snapshot.UploadProgress;
+import com.playerrealms.servermanager.tool.HashedWheelTimer;
+
+public class UploadPipelineTest {
+
+	private static final Logger LOGGER = Logger.getLogger("UploadPipelineTest");
+	
+	private HashedWheelTimer timer;
+	
+	@Before
+	public void setUp() {
+		timer = new HashedWheelTimer("Test", 10, TimeUnit.MILLISECONDS, 8);
+	}
+	
+	@After
+	public void tearDown() {
+		timer.stop();
+	}
+	
+	@Test(timeout = 5000)
+	public void testRetry() throws InterruptedException {
+		UploadPipeline pipeline = new UploadPipeline(1, 4, 3, timer, LOGGER);
+		
+		AtomicInteger attempts = new AtomicInteger();
+		AtomicReference<Boolean> result = new AtomicReference<>();
+		CountDownLatch done = new CountDownLatch(1);
+		
+		UploadProgress progress = pipeline.submit("a", p -> {
+			if(attempts.incrementAndGet() < 2) {
+				throw new IOException("Connection reset");
+			}
+		}, success -> {
+			result.set(success);
+			done.countDown();
+		});
+		
+		done.await();
+		
+		assertTrue(result.get());
+		assertEquals(2, progress.getAttempts());
+		assertEquals(1, pipeline.getCompletedCount());
+		
+		assertTrue(pipeline.shutdown(1, TimeUnit.SECONDS));
+		assertEquals(0, pipeline.getPendingCount());
+	}
+	
+	@Test(timeout = 5000)
+	public void testSubmitAfterShutdown() throws InterruptedException {
+		UploadPipeline pipeline = new UploadPipeline(1, 4, 3, timer, LOGGER);
+		
+		assertTrue(pipeline.shutdown(1, TimeUnit.SECONDS));
+		
+		AtomicReference<Boolean> result = new AtomicReference<>();
+		
+		UploadProgress progress = pipeline.submit("a", p -> fail("Ran after shutdown"), result::set);
+		
+		//Failed through done, never dropped
+		assertFalse(result.get());
+		assertEquals(UploadProgress.State.FAILED, progress.getState());
+		assertEquals(1, pipeline.getFailedCount());
+		assertEquals(0, pipeline.getPendingCount());
+	}
+	
+	@Test(timeout = 10000)
+	public void testQueueFull() throws InterruptedException {
+		UploadPipeline pipeline = new UploadPipeline(1, 1, 1, timer, LOGGER);
+		
+		Thread caller = Thread.currentThread();
+		CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1), done = new CountDownLatch(3);
+		
+		pipeline.submit("a", p -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}, success -> done.countDown());
+		started.await();
+		
+		pipeline.submit("b", p -> assertNotSame(caller, Thread.currentThread()), success -> done.countDown());
+		
+		//Queue is full, handed in again later instead of running here
+		pipeline.submit("c", p -> assertNotSame(caller, Thread.currentThread()), success -> done.countDown());
+		assertEquals(3, pipeline.getPendingCount());
+		
+		release.countDown();
+		done.await();
+		
+		assertTrue(pipeline.shutdown(1, TimeUnit.SECONDS));
+		assertEquals(3, pipeline.getCompletedCount());
+	}
+	
+}
@@ -0,0 +1,85 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.playerrealms.servermanager.tool.KeyedExecutor;
+import com.playerrealms.servermanager.tool.Threads;
+
+/**
+ * Runs 1000 simulated lifecycle operations at once through the request executor, built the same way
+ * the manager builds it with the default action_threads and action_virtual_limit, and prints the peak
+ * thread count and latency for platform and virtual threads. Each operation blocks like a start does:
+ * a metadata update, a snapshot download and a publish.
+ * Not a unit test, run it with java -cp ... VirtualThreadBenchmark [operations] [action_threads] [action_virtual_limit] on the JDK to compare.
+ */
+public class VirtualThreadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int operations = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int limit = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+		
+		run("platform, "+threads+" pooled", false, threads, limit, operations);
+		
+		if(Threads.isVirtualSupported()) {
+			run("virtual, thread per task"+(limit > 0 ? " limited to "+limit : ""), true, threads, limit, operations);
+		}else {
+			System.out.println("This JVM has no virtual threads, run on JDK 21 to compare");
+		}
+	}
+	
+	private static void run(String name, boolean virtual, int workers, int limit, int operations) throws InterruptedException {
+		Threads.setVirtual(virtual);
+		
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		
+		Executor pool = Threads.workers("Bench", workers, limit);
+		KeyedExecutor executor = new KeyedExecutor(pool, 4);
+		
+		long[] latency = new long[operations];
+		CountDownLatch done = new CountDownLatch(operations);
+		
+		threads.resetPeakThreadCount();
+		int before = threads.getThreadCount();
+		long start = System.nanoTime();
+		
+		for(int i = 0; i < operations;i++) {
+			int op = i;
+			long submitted = System.nanoTime();
+			executor.submit("server"+i, () -> {
+				block(5);//findOneAndUpdate STATUS
+				block(50);//GridFS download
+				block(2);//publish update
+				latency[op] = System.nanoTime() - submitted;
+				done.countDown();
+			});
+		}
+		
+		done.await();
+		long total = System.nanoTime() - start;
+		int peak = threads.getPeakThreadCount() - before;
+		
+		if(pool instanceof ExecutorService) {
+			((ExecutorService) pool).shutdown();
+			((ExecutorService) pool).awaitTermination(10, TimeUnit.SECONDS);
+		}
+		
+		Arrays.sort(latency);
+		
+		System.out.println(name+": "+operations+" operations in "+TimeUnit.NANOSECONDS.toMillis(total)+"ms, peak platform threads +"+peak
+				+", latency p50 "+TimeUnit.NANOSECONDS.toMillis(latency[operations / 2])+"ms p99 "+TimeUnit.NANOSECONDS.toMillis(latency[operations * 99 / 100])+"ms");
+	}
+	
+	private static void block(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}